@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.view.View;
 
 /**
  * Convenience class to avoid having to call a configurator's lifecycle methods everywhere. This
@@ -53,5 +54,18 @@ public class AwfulActivity extends Activity {
 		super.onDestroy();
 		mConf.onDestroy();
 	}
+	
+	/**
+	 * Shows or hides the small spinner in the action bar. Screens show it while
+	 * they refresh content that is already on screen from the cache, in place
+	 * of a blocking progress dialog.
+	 */
+	protected void setUpdating(boolean aUpdating) {
+		View updating = findViewById(R.id.updating);
+		
+		if (updating != null) {
+			updating.setVisibility(aUpdating ? View.VISIBLE : View.GONE);
+		}
+	}
 		
 }
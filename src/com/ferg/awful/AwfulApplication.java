@@ -1,12 +1,9 @@
 package com.ferg.awful;
 
-import android.app.AlertDialog;
 import android.app.Application;
-import android.util.Log;
 
-import com.commonsware.cwac.cache.SimpleWebImageCache;
-import com.ferg.awful.thumbnail.ThumbnailBus;
-import com.ferg.awful.thumbnail.ThumbnailMessage;
+import com.ferg.awful.image.ImageCache;
+import com.ferg.awful.image.SmilieCache;
 
 /**
  * Allows application-wide access to the global image cache
@@ -16,15 +13,23 @@ import com.ferg.awful.thumbnail.ThumbnailMessage;
 public class AwfulApplication extends Application {
 	private static String TAG="AwfulApplication";
 	
-	private ThumbnailBus mImageBus=new ThumbnailBus();
-	private SimpleWebImageCache<ThumbnailBus, ThumbnailMessage> mImageCache=
-							new SimpleWebImageCache<ThumbnailBus, ThumbnailMessage>(null, null, 101, mImageBus);
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		
+		// Starts reading the smilies off disk, well before the first post
+		SmilieCache.getInstance(this);
+	}
 	
-	ThumbnailBus getImageBus() {
-		return(mImageBus);
+	ImageCache getImageCache() {
+		return(ImageCache.getInstance(this));
 	}
 	
-	SimpleWebImageCache<ThumbnailBus, ThumbnailMessage> getImageCache() {
-		return(mImageCache);
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		
+		// Decoded images are the one big thing that's cheap to get back
+		getImageCache().clearMemory();
 	}
 }
@@ -31,7 +31,6 @@ import java.util.ArrayList;
 
 import org.htmlcleaner.TagNode;
 
-import android.app.ProgressDialog;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
@@ -51,9 +50,9 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.ferg.awful.constants.Constants;
-import com.ferg.awful.list.ForumArrayAdapter;
+import com.ferg.awful.list.ThreadCursorAdapter;
 import com.ferg.awful.network.NetworkUtils;
-import com.ferg.awful.thread.AwfulForum;
+import com.ferg.awful.provider.WriteBehindQueue;
 import com.ferg.awful.thread.AwfulSubforum;
 import com.ferg.awful.thread.AwfulThread;
 
@@ -66,8 +65,7 @@ public class ForumDisplayActivity extends AwfulActivity {
     private ImageButton mUserCp;
 	private ImageButton mNext;
     private ListView mThreadList;
-    private ForumArrayAdapter mThreadAdapter;
-    private ProgressDialog mDialog;
+    private ThreadCursorAdapter mThreadAdapter;
     private SharedPreferences mPrefs;
     private TextView mTitle;
 
@@ -78,7 +76,6 @@ public class ForumDisplayActivity extends AwfulActivity {
         setContentView(R.layout.forum_display);
 		
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-        mThreadAdapter = new ForumArrayAdapter(this);
         
         mThreadList = (ListView) findViewById(R.id.forum_list);
         mTitle      = (TextView) findViewById(R.id.title);
@@ -86,9 +83,10 @@ public class ForumDisplayActivity extends AwfulActivity {
         mNext       = (ImageButton) findViewById(R.id.next_page);
 
         mThreadList.setOnScrollListener(new EndlessScrollListener());
-        mThreadList.setAdapter(mThreadAdapter);
         mThreadList.setOnItemClickListener(onThreadSelected);
 
+        final AwfulSubforum retainedForum = (AwfulSubforum) getLastNonConfigurationInstance();
+
         mForum = (AwfulSubforum) getIntent().getParcelableExtra(Constants.FORUM);
         if(mForum == null) {
         	// This is normally a failure condition, except if we're receiving an
@@ -104,13 +102,20 @@ public class ForumDisplayActivity extends AwfulActivity {
         	}
         }
         
-        final ArrayList<AwfulThread> retainedThreadList = (ArrayList<AwfulThread>) getLastNonConfigurationInstance();
+        // The list is whatever the provider has for this forum; fetching just
+        // refreshes the provider and the adapter picks the changes up
+        mThreadAdapter = new ThreadCursorAdapter(this, AwfulThread.CONTENT_URI, 
+                AwfulThread.FORUM_ID + "=? AND " + AwfulThread.LIST_POSITION + " IS NOT NULL", 
+                new String[] { mForum.getForumId() }, AwfulThread.LIST_POSITION);
+        mThreadList.setAdapter(mThreadAdapter);
 
-        if (retainedThreadList == null || retainedThreadList.size() == 0) {
+        // A fetch cut short by the rotation won't have found the page numbers
+        if (retainedForum == null || retainedForum.getCurrentPage() == 0) {
         	mFetchTask = new FetchThreadsTask();
         	mFetchTask.execute(mForum.getForumId());
         } else {
-            mThreadAdapter.setThreads(retainedThreadList);
+            // Keep the page numbers we'd already worked out
+            mForum = retainedForum;
         }
         
         // We might not be able to set this here if we're getting it from
@@ -127,9 +132,7 @@ public class ForumDisplayActivity extends AwfulActivity {
     public void onPause() {
         super.onPause();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mFetchTask != null) {
             mFetchTask.cancel(true);
@@ -140,9 +143,7 @@ public class ForumDisplayActivity extends AwfulActivity {
     public void onStop() {
         super.onStop();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mFetchTask != null) {
             mFetchTask.cancel(true);
@@ -153,13 +154,15 @@ public class ForumDisplayActivity extends AwfulActivity {
     public void onDestroy() {
         super.onDestroy();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mFetchTask != null) {
             mFetchTask.cancel(true);
         }
+
+        if (mThreadAdapter != null) {
+            mThreadAdapter.close();
+        }
     }
     
     @Override
@@ -192,7 +195,7 @@ public class ForumDisplayActivity extends AwfulActivity {
 
     @Override
     public Object onRetainNonConfigurationInstance() {
-        return mThreadAdapter.getThreads();
+        return mForum;
     }
 
     private View.OnClickListener onButtonClick = new View.OnClickListener() {
@@ -212,6 +215,10 @@ public class ForumDisplayActivity extends AwfulActivity {
         }
     };
 
+    /**
+     * Fetches a page of threads into the provider. The list shows the cached
+     * rows until the new ones are written.
+     */
     private class FetchThreadsTask extends AsyncTask<String, Void, ArrayList<AwfulThread>> {
 		private int mPage;
 
@@ -222,8 +229,7 @@ public class ForumDisplayActivity extends AwfulActivity {
 		}
 
         public void onPreExecute() {
-            mDialog = ProgressDialog.show(ForumDisplayActivity.this, "Loading", 
-                "Hold on...", true);
+            setUpdating(true);
         }
 
         public ArrayList<AwfulThread> doInBackground(String... aParams) {
@@ -240,6 +246,8 @@ public class ForumDisplayActivity extends AwfulActivity {
                     }
 
                     result = AwfulThread.parseForumThreads(threads);
+                    WriteBehindQueue.getInstance(ForumDisplayActivity.this)
+                        .enqueueThreadList(aParams[0], mPage, result);
                     //TODO: On the C2P path, we need to get the forum title here too
                     
                     // Now that we have the page number list for the current forum we can
@@ -262,33 +270,18 @@ public class ForumDisplayActivity extends AwfulActivity {
             if (!isCancelled()) {
             	//TODO: We need to set the forum title
             	
-                mThreadAdapter.addThreads(aResult);
-
-                mDialog.dismiss();
+                setUpdating(false);
             }
         }
     }
 
 	private AdapterView.OnItemClickListener onThreadSelected = new AdapterView.OnItemClickListener() {
 		public void onItemClick(AdapterView<?> aParent, View aView, int aPosition, long aId) {
-            ForumArrayAdapter adapter = (ForumArrayAdapter) mThreadList.getAdapter();
-            
-            switch(adapter.getItemType(aPosition)) {
-            case THREAD:
-            	AwfulThread thread = (AwfulThread) adapter.getItem(aPosition);
-                Intent viewThread = new Intent().setClass(ForumDisplayActivity.this, ThreadDisplayActivity.class);
-                viewThread.putExtra(Constants.THREAD, thread);
-                startActivity(viewThread);
-                break;
-                
-            case SUB_FORUM:
-            	AwfulForum forum = (AwfulForum) adapter.getItem(aPosition);
-                Intent viewForum = new Intent().setClass(ForumDisplayActivity.this, ForumDisplayActivity.class);
-                viewForum.putExtra(Constants.FORUM, forum);
-                startActivity(viewForum);
-                break;
-            }
-            
+            AwfulThread thread = mThreadAdapter.getItem(aPosition);
+
+            Intent viewThread = new Intent().setClass(ForumDisplayActivity.this, ThreadDisplayActivity.class);
+            viewThread.putExtra(Constants.THREAD, thread);
+            startActivity(viewThread);
 		}
 	};
 
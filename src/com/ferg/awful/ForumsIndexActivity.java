@@ -31,7 +31,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import android.app.Activity;
-import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -66,7 +65,7 @@ public class ForumsIndexActivity extends AwfulActivity {
 
     private ImageButton mUserCp;
     private ExpandableListView mForumList;
-	private ProgressDialog mDialog;
+    private AwfulForumAdapter mForumAdapter;
     private SharedPreferences mPrefs;
     private TextView mTitle;
 
@@ -100,9 +99,7 @@ public class ForumsIndexActivity extends AwfulActivity {
     public void onPause() {
         super.onPause();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mLoadTask != null) {
             mLoadTask.cancel(true);
@@ -113,9 +110,7 @@ public class ForumsIndexActivity extends AwfulActivity {
     public void onStop() {
         super.onStop();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mLoadTask != null) {
             mLoadTask.cancel(true);
@@ -126,9 +121,7 @@ public class ForumsIndexActivity extends AwfulActivity {
     public void onDestroy() {
         super.onDestroy();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mLoadTask != null) {
             mLoadTask.cancel(true);
@@ -141,7 +134,7 @@ public class ForumsIndexActivity extends AwfulActivity {
     	// Odds are we want to refresh whether or not it was successful
     	
     	// But we do need to make sure we aren't already in the middle of a refresh
-    	if(mDialog == null || !mDialog.isShowing()) {
+    	if(mLoadTask == null || mLoadTask.getStatus() == AsyncTask.Status.FINISHED) {
     		mLoadTask = new LoadForumsTask();
             mLoadTask.execute();
     	}
@@ -157,17 +150,40 @@ public class ForumsIndexActivity extends AwfulActivity {
         }
     };
 
+    private void setForums(ArrayList<AwfulForum> aForums) {
+        if (mForumAdapter == null) {
+            mForumAdapter = new AwfulForumAdapter(ForumsIndexActivity.this, aForums);
+
+            mForumList.setAdapter(mForumAdapter);
+            mForumList.setOnChildClickListener(onForumSelected);
+        } else {
+            // Swapping the data under the existing adapter keeps the
+            // expanded groups and scroll position
+            mForumAdapter.setForums(aForums);
+        }
+    }
+
+    /**
+     * Shows the cached forum list as soon as it's read, then replaces it with
+     * a fresh copy from the site.
+     */
     private class LoadForumsTask extends AsyncTask<Void, Void, ArrayList<AwfulForum>> {
+        private ArrayList<AwfulForum> mCached;
+
         public void onPreExecute() {
-            mDialog = ProgressDialog.show(ForumsIndexActivity.this, "Loading", 
-                "Hold on...", true);
+            setUpdating(true);
         }
 
         public ArrayList<AwfulForum> doInBackground(Void... aParams) {
             ArrayList<AwfulForum> result = new ArrayList<AwfulForum>();
             if (!isCancelled()) {
+                mCached = AwfulForum.getCachedForums(ForumsIndexActivity.this);
+                if (mCached.size() > 0) {
+                    publishProgress();
+                }
+
                 try {
-                    result = AwfulForum.getForums(ForumsIndexActivity.this);
+                    result = AwfulForum.getForumsFromRemote(ForumsIndexActivity.this);
                 } catch (Exception e) {
                     e.printStackTrace();
                     Log.i(TAG, e.toString());
@@ -176,13 +192,20 @@ public class ForumsIndexActivity extends AwfulActivity {
             return result;
         }
 
-        public void onPostExecute(ArrayList<AwfulForum> aResult) {
+        public void onProgressUpdate(Void... aProgress) {
             if (!isCancelled()) {
-                mForumList.setAdapter(new AwfulForumAdapter(ForumsIndexActivity.this, aResult));
+                setForums(mCached);
+            }
+        }
 
-                mForumList.setOnChildClickListener(onForumSelected);
+        public void onPostExecute(ArrayList<AwfulForum> aResult) {
+            if (!isCancelled()) {
+                // An empty result means the fetch failed, so keep what's showing
+                if (aResult.size() > 0 || mForumAdapter == null) {
+                    setForums(aResult);
+                }
 
-                mDialog.dismiss();
+                setUpdating(false);
             }
         }
     }
@@ -212,6 +235,11 @@ public class ForumsIndexActivity extends AwfulActivity {
             mForums       = aForums;
         }
 
+        public void setForums(ArrayList<AwfulForum> aForums) {
+            mForums = aForums;
+            notifyDataSetChanged();
+        }
+
         @Override
         public View getChildView(int aGroupPosition, int aChildPosition, boolean isLastChild, 
                 View aConvertView, ViewGroup aParent) 
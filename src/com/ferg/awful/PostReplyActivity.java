@@ -27,21 +27,28 @@
 
 package com.ferg.awful;
 
-import android.app.Activity;
-import android.app.ProgressDialog;
-import android.content.Context;
+import java.util.ArrayList;
+
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.ferg.awful.constants.Constants;
+import com.ferg.awful.provider.WriteBehindQueue;
+import com.ferg.awful.reply.Draft;
+import com.ferg.awful.reply.FormTokenCache;
+import com.ferg.awful.reply.OutboxService;
+import com.ferg.awful.reply.QueuedReply;
 import com.ferg.awful.reply.Reply;
 import com.ferg.awful.thread.AwfulThread;
 
@@ -50,19 +57,21 @@ public class PostReplyActivity extends AwfulActivity {
 
 	public static final int RESULT_POSTED = 1;
 
-    private FetchFormCookieTask mFetchCookieTask;
-    private FetchFormKeyTask mFetchKeyTask;
-    private SubmitReplyTask mSubmitTask;
+    // How long typing has to stop before the draft is saved
+    private static final long DRAFT_DELAY = 2000;
+
+    private FetchQuoteTask mFetchQuoteTask;
+
+    private Handler mHandler = new Handler();
+    private boolean mDraftChanged;
 
     private Button mSubmit;
     private EditText mMessage;
-	private ProgressDialog mDialog;
-    private SharedPreferences mPrefs;
 	private TextView mTitle;
 
 	private AwfulThread mThread;
-    private String mFormCookie;
-	private String mFormKey;
+    // The post being edited, or null for a new reply
+    private String mPostId;
 
     @Override
     public void onCreate(Bundle savedInstanceState)
@@ -74,20 +83,32 @@ public class PostReplyActivity extends AwfulActivity {
         mMessage = (EditText) findViewById(R.id.post_message);
 		mTitle   = (TextView) findViewById(R.id.title);
 
-        mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-
         Intent caller = getIntent();
 
 		mThread = (AwfulThread) caller.getParcelableExtra(Constants.THREAD);
+        mPostId = caller.getBooleanExtra(Constants.EDITING, false) ?
+            caller.getStringExtra(Constants.POST_ID) : null;
 		
 		mTitle.setText(getString(R.string.post_reply));
 
         // If we're quoting a post, add it to the message box
         if (caller.hasExtra(Constants.QUOTE)) {
             String quoteText = caller.getStringExtra(Constants.QUOTE);
-            mMessage.setText(quoteText.replaceAll("&quot;", "\""));
+            mMessage.setText(unescape(quoteText));
+            mMessage.setSelection(mMessage.length());
         }
 
+        // A quote built locally gets checked against the site's own
+        if (caller.hasExtra(Constants.QUOTE_ID) && savedInstanceState == null) {
+            mFetchQuoteTask = new FetchQuoteTask(caller.getStringExtra(Constants.QUOTE));
+            mFetchQuoteTask.execute(caller.getStringExtra(Constants.QUOTE_ID));
+        }
+
+        if (savedInstanceState == null && !restoreFailedReplies()) {
+            restoreDraft();
+        }
+
+        mMessage.addTextChangedListener(mDraftWatcher);
         mSubmit.setOnClickListener(onSubmitClick);
     }
 
@@ -95,23 +116,16 @@ public class PostReplyActivity extends AwfulActivity {
     public void onResume() {
         super.onResume();
 
-        mFormKey = mPrefs.getString(Constants.FORM_KEY, null);
-        if (mFormKey == null) {
-            mFetchKeyTask = new FetchFormKeyTask();
-            mFetchKeyTask.execute(mThread.getThreadId());
-        } else {
-            mFetchCookieTask = new FetchFormCookieTask();
-            mFetchCookieTask.execute(mThread.getThreadId());
-        }
-        
-		// We'll enable it once we have a formkey and cookie
-		mSubmit.setEnabled(false);
+        // The thread view has usually fetched these already; if not they'll
+        // be on their way by the time the reply is written
+        FormTokenCache.prefetch(mThread.getThreadId());
     }
     
     @Override
     public void onPause() {
         super.onPause();
 
+        saveDraft();
         cleanupTasks();
     }
         
@@ -130,123 +144,172 @@ public class PostReplyActivity extends AwfulActivity {
     }
 
     private void cleanupTasks() {
-        if (mDialog != null) {
-            mDialog.dismiss();
+        if (mFetchQuoteTask != null) {
+            mFetchQuoteTask.cancel(true);
         }
+    }
+
+    private TextWatcher mDraftWatcher = new TextWatcher() {
+        public void afterTextChanged(Editable aText) {
+            mDraftChanged = true;
 
-        if (mFetchCookieTask != null) {
-            mFetchCookieTask.cancel(true);
+            mHandler.removeCallbacks(mSaveDraft);
+            mHandler.postDelayed(mSaveDraft, DRAFT_DELAY);
         }
 
-        if (mFetchKeyTask != null) {
-            mFetchKeyTask.cancel(true);
+        public void beforeTextChanged(CharSequence aText, int aStart, int aCount, int aAfter) {}
+
+        public void onTextChanged(CharSequence aText, int aStart, int aBefore, int aCount) {}
+    };
+
+    private Runnable mSaveDraft = new Runnable() {
+        public void run() {
+            saveDraft();
         }
-        
-        if (mSubmitTask != null) {
-            mSubmitTask.cancel(true);
+    };
+
+    private void saveDraft() {
+        mHandler.removeCallbacks(mSaveDraft);
+
+        if (mDraftChanged) {
+            mDraftChanged = false;
+
+            WriteBehindQueue.getInstance(this).enqueueDraft(mThread.getThreadId(), mPostId, 
+                    mMessage.getText().toString());
+        }
+    }
+
+    /**
+     * Puts back the draft left last time, unless it's already on its way
+     * through the outbox. A new quote goes after the draft.
+     */
+    private void restoreDraft() {
+        String draft = Draft.load(this, mThread.getThreadId(), mPostId);
+        if (draft == null || isQueued()) {
+            return;
         }
+
+        String current = mMessage.getText().toString();
+        if (mPostId == null && current.trim().length() > 0 && !draft.contains(current.trim())) {
+            draft = draft + "\n\n" + current;
+        }
+
+        mMessage.setText(draft);
+        mMessage.setSelection(mMessage.length());
+    }
+
+    private boolean isQueued() {
+        Cursor query = getContentResolver().query(QueuedReply.CONTENT_URI, 
+                new String[] { QueuedReply.ID }, getOutboxWhere(), getOutboxArgs(), null);
+        if (query == null) {
+            return false;
+        }
+
+        try {
+            return query.getCount() > 0;
+        } finally {
+            query.close();
+        }
+    }
+
+    private String getOutboxWhere() {
+        return QueuedReply.THREAD_ID + "=? AND " + QueuedReply.POST_ID + 
+            (mPostId == null ? " IS NULL" : "=?");
+    }
+
+    private String[] getOutboxArgs() {
+        return mPostId == null ? 
+            new String[] { mThread.getThreadId() } : new String[] { mThread.getThreadId(), mPostId };
     }
 
     private View.OnClickListener onSubmitClick = new View.OnClickListener() {
         public void onClick(View aView) {
-            boolean editing = getIntent().getBooleanExtra(Constants.EDITING, false);
+            // The draft stays until the outbox has sent the reply
+            saveDraft();
 
-			mSubmitTask = new SubmitReplyTask(editing);
+            // The outbox keeps trying until it's sent, so there's nothing
+            // to wait for here
+            QueuedReply.enqueue(PostReplyActivity.this, mThread.getThreadId(), mPostId, 
+                    mMessage.getText().toString());
+            OutboxService.start(PostReplyActivity.this);
 
-            if (editing) {
-                mSubmitTask.execute(mMessage.getText().toString(), 
-                        mFormKey, mFormCookie, mThread.getThreadId(), getIntent().getStringExtra(Constants.POST_ID));
-            } else {
-                mSubmitTask.execute(mMessage.getText().toString(), 
-                        mFormKey, mFormCookie, mThread.getThreadId());
-            }
+            setResult(RESULT_POSTED);
+            finish();
         }
     };
 
-	private class SubmitReplyTask extends AsyncTask<String, Void, Void> {
-        private boolean mEditing;
+    /**
+     * Puts back any replies to this thread (or edits of this post) that the
+     * outbox gave up on, after whatever's already in the message box.
+     *
+     * @return Whether there were any
+     */
+    private boolean restoreFailedReplies() {
+        String where = getOutboxWhere() + " AND " + QueuedReply.STATE + "=" + QueuedReply.STATE_FAILED;
+        String[] args = getOutboxArgs();
+
+        Cursor query = getContentResolver().query(QueuedReply.CONTENT_URI, null, 
+                where, args, QueuedReply.ID);
+        if (query == null) {
+            return false;
+        }
 
-        public SubmitReplyTask(boolean aEditing) {
-            mEditing = aEditing;
+        ArrayList<QueuedReply> failed;
+        try {
+            failed = QueuedReply.fromCursor(query);
+        } finally {
+            query.close();
         }
 
-		public void onPreExecute() {
-            mDialog = ProgressDialog.show(PostReplyActivity.this, "Posting", 
-                "Hopefully it didn't suck...", true);
+        if (failed.size() == 0) {
+            return false;
         }
 
-        public Void doInBackground(String... aParams) {
-            if (!isCancelled()) {
-                try {
-                    if (mEditing) {
-                        Log.i(TAG, "Editing!!");
-                        Reply.edit(aParams[0], aParams[1], aParams[2], aParams[3], aParams[4]);
-                    } else {
-                        Reply.post(aParams[0], aParams[1], aParams[2], aParams[3]);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.i(TAG, e.toString());
-                }
+        // An edit starts from the post as it is on the site, so the failed
+        // edit replaces it rather than being added to it
+        StringBuilder message = new StringBuilder(mPostId == null ? mMessage.getText() : "");
+        for (QueuedReply reply : failed) {
+            if (message.length() > 0) {
+                message.append("\n\n");
             }
-            return null;
+            message.append(reply.getMessage());
         }
 
-        public void onPostExecute(Void aResult) {
-            if (!isCancelled()) {
-                mDialog.dismiss();
+        mMessage.setText(message);
+        mMessage.setSelection(mMessage.length());
 
-				PostReplyActivity.this.setResult(RESULT_POSTED);
-				PostReplyActivity.this.finish();
-            }
-        }
-    }
+        getContentResolver().delete(QueuedReply.CONTENT_URI, where, args);
 
-    // Fetches the user's Form Key if we haven't already gotten it.  This should
-    // only occur once for any user, and we'll store it in a user preference
-    // after that.
-    private class FetchFormKeyTask extends AsyncTask<String, Void, String> {
-        public String doInBackground(String... aParams) {
-            String result = null;
+        // The outbox no longer has it, so it has to live on as the draft
+        mDraftChanged = true;
 
-            if (!isCancelled()) {
-                try {
-                    result = Reply.getFormKey(aParams[0]);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.i(TAG, e.toString());
-                }
-            }
+        Toast.makeText(this, R.string.reply_restored, Toast.LENGTH_LONG).show();
 
-            return result;
-        }
+        return true;
+    }
 
-        public void onPostExecute(String aResult) {
-            if (!isCancelled()) {
-                if (aResult.length() > 0) {
-                    mFormKey = aResult;
+    private static String unescape(String aText) {
+        return aText.replaceAll("&quot;", "\"").replaceAll("&#039;", "'")
+            .replaceAll("&lt;", "<").replaceAll("&gt;", ">").replaceAll("&amp;", "&");
+    }
 
-                    SharedPreferences.Editor editor = mPrefs.edit();
-                    editor.putString(Constants.FORM_KEY, mFormKey);
-                    editor.commit();
+    /**
+     * Fetches the site's version of a quote and puts it in place of the one
+     * built locally, if they differ and the quote hasn't been edited.
+     */
+    private class FetchQuoteTask extends AsyncTask<String, Void, String> {
+        private String mLocalQuote;
 
-                    mFetchCookieTask = new FetchFormCookieTask();
-                    mFetchCookieTask.execute(mThread.getThreadId());
-                }
-            }
+        public FetchQuoteTask(String aLocalQuote) {
+            mLocalQuote = aLocalQuote == null ? "" : unescape(aLocalQuote);
         }
-	}
 
-    // Fetches the form cookie.  This is necessary every time we post, otherwise
-    // the post will fail silently for roughly 5 minutes after posting one time.
-    private class FetchFormCookieTask extends AsyncTask<String, Void, String> {
         public String doInBackground(String... aParams) {
             String result = null;
 
             if (!isCancelled()) {
                 try {
-                    result = Reply.getFormCookie(aParams[0]);
-                    Log.i(TAG, "Form cookie: " + result);
+                    result = Reply.getQuote(aParams[0]);
                 } catch (Exception e) {
                     e.printStackTrace();
                     Log.i(TAG, e.toString());
@@ -257,17 +320,24 @@ public class PostReplyActivity extends AwfulActivity {
         }
 
         public void onPostExecute(String aResult) {
-            if (!isCancelled()) {
-                if (aResult.length() > 0) {
-                    Log.i(TAG, aResult);
+            if (isCancelled() || aResult == null) {
+                return;
+            }
 
-                    mFormCookie = aResult;
+            String quote = unescape(aResult);
+            if (quote.trim().equals(mLocalQuote.trim())) {
+                return;
+            }
 
-                    if (mFormKey != null) {
-                        mSubmit.setEnabled(true);
-                    }
-                }
+            // Anything written after the quote stays where it is
+            String message = mMessage.getText().toString();
+            if (message.startsWith(mLocalQuote)) {
+                Log.i(TAG, "Local quote differed from the site's, replacing it");
+
+                int selection = mMessage.getSelectionEnd() - mLocalQuote.length();
+                mMessage.getText().replace(0, mLocalQuote.length(), quote);
+                mMessage.setSelection(Math.max(0, selection) + quote.length());
             }
         }
-	}
+    }
 }
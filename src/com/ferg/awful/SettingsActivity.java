@@ -136,11 +136,14 @@ public class SettingsActivity extends PreferenceActivity implements OnSharedPref
 	
 	// All keys representing int values whose Summaries should be set to their values
 	private static final String[] VALUE_SUMMARY_KEYS_INT = { 
-		"default_post_font_size" 
+		"default_post_font_size",
+		"page_cache_size",
+		"image_autoload_size"
 		};
 	
 	private static final String[] VALUE_SUMMARY_KEYS_LIST = {
-		"orientation"
+		"orientation",
+		"image_loading"
 	};
 	
 	@Override
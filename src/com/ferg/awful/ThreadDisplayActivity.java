@@ -37,9 +37,12 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.Html;
 import android.text.method.LinkMovementMethod;
@@ -54,6 +57,7 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ArrayAdapter;
 import android.widget.ImageButton;
@@ -68,9 +72,15 @@ import android.widget.Toast;
 import com.commonsware.cwac.adapter.AdapterWrapper;
 import com.ferg.awful.constants.Constants;
 import com.ferg.awful.htmlwidget.HtmlView;
+import com.ferg.awful.image.ImagePrefetcher;
+import com.ferg.awful.network.MarkReadQueue;
 import com.ferg.awful.network.NetworkUtils;
+import com.ferg.awful.provider.WriteBehindQueue;
 import com.ferg.awful.quickaction.ActionItem;
 import com.ferg.awful.quickaction.QuickAction;
+import com.ferg.awful.reply.FormTokenCache;
+import com.ferg.awful.reply.OutboxService;
+import com.ferg.awful.reply.QueuedReply;
 import com.ferg.awful.reply.Reply;
 import com.ferg.awful.thread.AwfulPost;
 import com.ferg.awful.thread.AwfulThread;
@@ -80,11 +90,39 @@ import com.ferg.awful.widget.NumberPicker;
 public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPreferenceChangeListener {
     private static final String TAG = "ThreadDisplayActivity";
 
+    // Saved instance state only says which page to reopen from the snapshot
+    // store and where the list was; the posts stay on disk
+    private static final String SAVED_THREAD_ID = "saved_thread_id";
+    private static final String SAVED_PAGE      = "saved_page";
+    private static final String SAVED_POSITION  = "saved_position";
+    private static final String SAVED_TOP       = "saved_top";
+
+    // How close to the end of the page the reader gets before the next
+    // page's images are fetched
+    private static final int PREFETCH_DISTANCE = 3;
+
+    // How long a prefetched page can stand in for fetching it again
+    private static final long PREFETCH_MAX_AGE = 5 * 60 * 1000;
+
 	private AwfulThread mThread;
     private FetchThreadTask mFetchTask;
-    private ParsePostQuoteTask mPostQuoteTask;
     private ParseEditPostTask mEditPostTask;
     private MarkLastReadTask mMarkLastReadTask;
+    private PrefetchNextPageTask mPrefetchTask;
+
+    // The page last prefetched, kept until the reader moves on to it
+    private int mPrefetchedPage;
+    private AwfulThread mPrefetched;
+    private long mPrefetchedAt;
+
+    // The last post marked read by hand. Fetching a page to prefetch it moves
+    // the site's read marker, so it's put back here afterwards.
+    private volatile int mMarkedPage;
+    private volatile String mMarkedUrl;
+
+    // The page sent back after a reply, held while a fetch is still reading
+    // the thread's posts so that fetch doesn't put its own page over it
+    private AwfulThread mPostedPage;
 
 	private ImageButton mNext;
 	private ImageButton mReply;
@@ -98,6 +136,14 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
     // saw them
     private int mDefaultPostFontSize;
     private int mDefaultPostFontColor;
+
+    // Picks up the page the outbox sends back once a reply goes through
+    private ContentObserver mOutboxObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean aSelfChange) {
+            checkPostedPage();
+        }
+    };
     
     @Override
     public void onCreate(Bundle savedInstanceState)
@@ -115,6 +161,7 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
         mReply    = (ImageButton) findViewById(R.id.reply);
 
         registerForContextMenu(mPostList);
+        mPostList.setOnScrollListener(new PrefetchScrollListener());
         
         final AwfulThread retainedThread = (AwfulThread) getLastNonConfigurationInstance();
 
@@ -143,6 +190,16 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
                 mThread = (AwfulThread) getIntent().getParcelableExtra(Constants.THREAD);
                 mFetchTask = new FetchThreadTask();
             }
+
+            // If the process was killed while we were in the background, go
+            // back to the page and spot the reader left, without the network
+            if (savedInstanceState != null && mThread.getThreadId() != null &&
+                    mThread.getThreadId().equals(savedInstanceState.getString(SAVED_THREAD_ID))) {
+                mFetchTask = new FetchThreadTask(savedInstanceState.getInt(SAVED_PAGE));
+                mFetchTask.setRestorePosition(savedInstanceState.getInt(SAVED_POSITION), 
+                        savedInstanceState.getInt(SAVED_TOP));
+            }
+
             mFetchTask.execute(mThread);
         } else {
             mThread = retainedThread;
@@ -188,6 +245,7 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
         super.onPause();
 
         mPrefs.unregisterOnSharedPreferenceChangeListener(this);
+        getContentResolver().unregisterContentObserver(mOutboxObserver);
         cleanupTasks();
     }
         
@@ -210,6 +268,8 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
             mDialog.dismiss();
         }
 
+        setUpdating(false);
+
         if (mFetchTask != null) {
             mFetchTask.cancel(true);
         }
@@ -217,9 +277,14 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
         if (mEditPostTask != null) {
             mEditPostTask.cancel(true);
         }
-        
-        if (mPostQuoteTask != null) {
-            mPostQuoteTask.cancel(true);
+
+        if (mPrefetchTask != null) {
+            mPrefetchTask.cancel(true);
+        }
+
+        // Let the mark itself go out; only the toast goes with the activity
+        if (mMarkLastReadTask != null) {
+            mMarkLastReadTask.cancel(false);
         }
     }
     
@@ -232,6 +297,9 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
     	onSharedPreferenceChanged(mPrefs, "default_post_font_color");
     	
     	mPrefs.registerOnSharedPreferenceChangeListener(this);
+
+        getContentResolver().registerContentObserver(QueuedReply.CONTENT_URI, true, mOutboxObserver);
+        checkPostedPage();
     }
     
     @Override
@@ -322,18 +390,32 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
                 mEditPostTask.execute(info.id);
                 return true;
             case R.id.quote:
-                mPostQuoteTask = new ParsePostQuoteTask();
-                mPostQuoteTask.execute(info.id);
+                quotePost(info.position);
                 return true;
             case R.id.last_read:
-                mMarkLastReadTask = new MarkLastReadTask();
-                mMarkLastReadTask.execute(info.id);
+                markLastRead(info.position);
                 return true;
         }
 
         return false;
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle aOutState) {
+        super.onSaveInstanceState(aOutState);
+
+        // The page itself was handed to the write-behind queue when it was
+        // fetched, so it's already in the snapshot store
+        if (mThread != null && mThread.getPosts() != null && mThread.getCurrentPage() > 0) {
+            View first = mPostList.getChildAt(0);
+
+            aOutState.putString(SAVED_THREAD_ID, mThread.getThreadId());
+            aOutState.putInt(SAVED_PAGE, mThread.getCurrentPage());
+            aOutState.putInt(SAVED_POSITION, mPostList.getFirstVisiblePosition());
+            aOutState.putInt(SAVED_TOP, first == null ? 0 : first.getTop());
+        }
+    }
+
     @Override
     public Object onRetainNonConfigurationInstance() {
         final AwfulThread currentThread = mThread;
@@ -343,15 +425,62 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
     
     @Override
     protected void onActivityResult(int aRequestCode, int aResultCode, Intent aData) {
-		// If we're here because of a post result, refresh the thread
+		// The reply is in the outbox; the thread is shown again once it's sent
 		switch (aResultCode) {
 			case PostReplyActivity.RESULT_POSTED:
-				mFetchTask = new FetchThreadTask(true);
-				mFetchTask.execute(mThread);
+				Toast.makeText(this, R.string.reply_queued, Toast.LENGTH_SHORT).show();
 				break;
 		}
     }
 
+    private void checkPostedPage() {
+        if (mThread == null) {
+            return;
+        }
+
+        AwfulThread posted = OutboxService.takePostedPage(mThread.getThreadId());
+        if (posted == null) {
+            return;
+        }
+
+        if (mFetchTask != null && mFetchTask.getStatus() != AsyncTask.Status.FINISHED) {
+            mPostedPage = posted;
+        } else {
+            showPostedPage(posted);
+        }
+    }
+
+    /**
+     * Shows the page the site sent back after a reply or edit.
+     */
+    private void showPostedPage(AwfulThread aPosted) {
+        boolean samePage = mThread.getPosts() != null && 
+            mThread.getCurrentPage() == aPosted.getCurrentPage();
+
+        mThread.setPosts(aPosted.getPosts());
+        mThread.setCurrentPage(aPosted.getCurrentPage());
+        mThread.setLastPage(aPosted.getLastPage());
+
+        if (samePage) {
+            updateListAdapter(mThread.getPosts());
+        } else {
+            setListAdapter();
+        }
+
+        setNextVisibility();
+
+        // The last form cookie was used up by the post
+        FormTokenCache.prefetch(mThread.getThreadId());
+    }
+
+    private void setNextVisibility() {
+        if (mThread.getCurrentPage() == mThread.getLastPage()) {
+            mNext.setVisibility(View.GONE);
+        } else {
+            mNext.setVisibility(View.VISIBLE);
+        }
+    }
+
     private void setListAdapter(ArrayList<AwfulPost> aPosts) {
         mPostList.setAdapter(generateAdapter(aPosts));
 
@@ -366,6 +495,21 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
         setLastRead(posts);
     }
 
+    /**
+     * Swaps a fresh copy of the page that's already showing into the list.
+     * Rows are rebound rather than rebuilt, so posts that haven't changed
+     * keep their rendered text and images, and the list doesn't move.
+     */
+    private void updateListAdapter(ArrayList<AwfulPost> aPosts) {
+        ListAdapter adapter = mPostList.getAdapter();
+
+        if (adapter instanceof AwfulPostAdapter) {
+            ((AwfulPostAdapter) adapter).setPosts(aPosts);
+        } else {
+            mPostList.setAdapter(generateAdapter(aPosts));
+        }
+    }
+
     private void setLastRead(ArrayList<AwfulPost> aPosts) {
         AwfulPost lastRead = null;
 
@@ -389,6 +533,7 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
 				case R.id.next_page:
 					if (mThread.getCurrentPage() < mThread.getLastPage()) {
 						mFetchTask = new FetchThreadTask(mThread.getCurrentPage() + 1);
+						mFetchTask.setPrefetched(takePrefetched(mThread.getCurrentPage() + 1));
                         mFetchTask.execute(mThread);
 					}
 					break;
@@ -402,82 +547,251 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
 		}
 	};
 
-    private class MarkLastReadTask extends AsyncTask<Long, Void, ArrayList<AwfulPost>> {
-        public void onPreExecute() {
-            mDialog = ProgressDialog.show(ThreadDisplayActivity.this, "Loading", 
-                "Hold on...", true);
+    /**
+     * Opens the reply screen quoting the given post. The quote is built from
+     * the post we already have; the reply screen checks it against the
+     * site's in the background.
+     */
+    private void quotePost(int aPosition) {
+        AwfulPost selected = (AwfulPost) mPostList.getAdapter().getItem(aPosition);
+
+        Intent postReply = new Intent().setClass(this, PostReplyActivity.class);
+        postReply.putExtra(Constants.THREAD, mThread);
+        postReply.putExtra(Constants.QUOTE_ID, selected.getId());
+
+        String quote = Reply.getLocalQuote(selected);
+        if (quote != null) {
+            postReply.putExtra(Constants.QUOTE, quote);
         }
 
-        public ArrayList<AwfulPost> doInBackground(Long... aParams) {
-            ArrayList<AwfulPost> result = new ArrayList<AwfulPost>();
+        startActivityForResult(postReply, 0);
+    }
 
-            if (!isCancelled()) {
-                try {
-                    AwfulPostAdapter adapter = (AwfulPostAdapter) mPostList.getAdapter();
-                    AwfulPost selected = (AwfulPost) adapter.getItem(aParams[0].intValue());
+    /**
+     * Moves the read marker to just after the given post. The posts on screen
+     * are updated straight away and only the rows that changed are redrawn;
+     * the site is told in the background.
+     */
+    private void markLastRead(int aPosition) {
+        ListAdapter adapter = mPostList.getAdapter();
+        AwfulPost selected  = (AwfulPost) adapter.getItem(aPosition);
 
-                    result = selected.markLastRead();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.i(TAG, e.toString());
+        if (selected.getLastReadUrl() == null) {
+            return;
+        }
+
+        int first = mPostList.getFirstVisiblePosition();
+        for (int i = 0; i < adapter.getCount(); i++) {
+            AwfulPost post = (AwfulPost) adapter.getItem(i);
+            boolean read   = i <= aPosition;
+
+            if (post.isPreviouslyRead() != read || post.isLastRead() == read) {
+                post.setPreviouslyRead(read);
+                post.setLastRead(!read);
+
+                // Rows off screen pick the change up when they're next bound
+                View row = mPostList.getChildAt(i - first);
+                if (row != null) {
+                    adapter.getView(i, row, mPostList);
                 }
             }
+        }
 
-            return result;
+        WriteBehindQueue.getInstance(this).enqueueLastRead(mThread.getThreadId(), 
+                mThread.getCurrentPage(), selected.getId(), aPosition);
+
+        mMarkedUrl  = selected.getLastReadUrl();
+        mMarkedPage = mThread.getCurrentPage();
+
+        mMarkLastReadTask = new MarkLastReadTask();
+        mMarkLastReadTask.execute(mThread.getThreadId(), selected.getLastReadUrl());
+    }
+
+    private class MarkLastReadTask extends AsyncTask<String, Void, Boolean> {
+        private boolean mQuiet;
+
+        public MarkLastReadTask() {}
+
+        /**
+         * @param aQuiet Whether to keep quiet about a mark that had to be
+         *        queued, for marks the reader didn't place themselves
+         */
+        public MarkLastReadTask(boolean aQuiet) {
+            mQuiet = aQuiet;
         }
 
-        public void onPostExecute(ArrayList<AwfulPost> aResult) {
-            if (!isCancelled()) {
-                mDialog.dismiss();
+        public Boolean doInBackground(String... aParams) {
+            return MarkReadQueue.send(ThreadDisplayActivity.this, aParams[0], aParams[1]);
+        }
 
-                setListAdapter(aResult);
+        public void onPostExecute(Boolean aSent) {
+            if (!isCancelled() && !aSent && !mQuiet) {
+                Toast.makeText(ThreadDisplayActivity.this, 
+                        R.string.mark_read_queued, Toast.LENGTH_SHORT).show();
             }
         }
     }
 
-    private class ParseEditPostTask extends AsyncTask<Long, Void, String> {
-        private String mPostId;
+    /**
+     * Starts warming the image cache with the next page once the reader is
+     * near the end of this one, if the connection is one data isn't paid
+     * for by the megabyte.
+     */
+    private void prefetchNextPage() {
+        if (mThread == null || mThread.getPosts() == null || mThread.getPosts().isEmpty()) {
+            return;
+        }
 
-        public void onPreExecute() {
-            mDialog = ProgressDialog.show(ThreadDisplayActivity.this, "Loading", 
-                "Hold on...", true);
+        int next = mThread.getCurrentPage() + 1;
+        if (next > mThread.getLastPage() || next == mPrefetchedPage) {
+            return;
         }
 
-        public String doInBackground(Long... aParams) {
-            String result = null;
+        if (mFetchTask != null && mFetchTask.getStatus() != AsyncTask.Status.FINISHED) {
+            return;
+        }
 
-            if (!isCancelled()) {
-                try {
-                    AwfulPostAdapter adapter = (AwfulPostAdapter) mPostList.getAdapter();
-                    AwfulPost selected = (AwfulPost) adapter.getItem(aParams[0].intValue());
+        if (!NetworkUtils.isUnmetered(this)) {
+            return;
+        }
 
-                    mPostId = selected.getId();
+        // Having loaded this page, the site's marker sits at its end unless
+        // the reader has marked something on it since
+        ArrayList<AwfulPost> posts = mThread.getPosts();
 
-                    result = Reply.getPost(selected.getId());
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.i(TAG, e.toString());
+        mPrefetchedPage = next;
+        mPrefetched     = null;
+
+        mPrefetchTask = new PrefetchNextPageTask(next, mThread.getCurrentPage(), 
+                posts.get(posts.size() - 1).getLastReadUrl());
+        mPrefetchTask.execute(mThread.getThreadId());
+    }
+
+    /**
+     * Hands over the prefetched page if it's the one asked for and recent
+     * enough to show as is. Either way it's only good for one use.
+     */
+    private AwfulThread takePrefetched(int aPage) {
+        AwfulThread result = mPrefetched;
+        mPrefetched = null;
+
+        if (mPrefetchTask != null) {
+            // The reader is going on to the page, so leave the marker there
+            mPrefetchTask.keepMarker();
+            mPrefetchTask.cancel(true);
+        }
+
+        if (result == null || result.getCurrentPage() != aPage ||
+                SystemClock.uptimeMillis() - mPrefetchedAt > PREFETCH_MAX_AGE) {
+            return null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Fetches the next page and queues its images. The page is held in
+     * memory rather than stored locally.
+     *
+     * Viewing a page on the site moves the reader's read marker to its end,
+     * so once the page is in the marker is sent back to where the reader
+     * really is. Nothing is sent if the page had no unread posts, since the
+     * marker was already past it.
+     */
+    private class PrefetchNextPageTask extends AsyncTask<String, Void, AwfulThread> {
+        private int mPage;
+        private int mFromPage;
+        private String mFromUrl;
+        private volatile boolean mKeepMarker;
+
+        /**
+         * @param aFromPage The page being read
+         * @param aFromUrl Where the site's marker was on it before prefetching
+         */
+        public PrefetchNextPageTask(int aPage, int aFromPage, String aFromUrl) {
+            mPage     = aPage;
+            mFromPage = aFromPage;
+            mFromUrl  = aFromUrl;
+        }
+
+        /**
+         * Leaves the marker on the prefetched page, for when the reader goes
+         * on to it.
+         */
+        public void keepMarker() {
+            mKeepMarker = true;
+        }
+
+        public AwfulThread doInBackground(String... aThreadId) {
+            if (isCancelled()) {
+                return null;
+            }
+
+            AwfulThread next = new AwfulThread(aThreadId[0]);
+
+            try {
+                next.getThreadPosts(mPage);
+            } catch (Exception e) {
+                Log.i(TAG, "Couldn't prefetch page " + mPage + ": " + e.toString());
+                return null;
+            }
+
+            if (next.getPosts() == null) {
+                return null;
+            }
+
+            // Put the marker back even if we've been cancelled since, or the
+            // page would stay marked read
+            if (hasUnread(next.getPosts()) && !mKeepMarker) {
+                String readUrl = mMarkedPage == mFromPage && mMarkedUrl != null ? mMarkedUrl : mFromUrl;
+                if (readUrl != null) {
+                    MarkReadQueue.send(ThreadDisplayActivity.this, aThreadId[0], readUrl);
                 }
             }
-            return result;
+
+            if (isCancelled() || next.getCurrentPage() != mPage) {
+                return null;
+            }
+
+            ImagePrefetcher.prefetch(ThreadDisplayActivity.this, next.getPosts());
+
+            return next;
         }
 
-        public void onPostExecute(String aResult) {
-            if (!isCancelled()) {
-                mDialog.dismiss();
+        public void onPostExecute(AwfulThread aResult) {
+            if (!isCancelled() && aResult != null) {
+                mPrefetched   = aResult;
+                mPrefetchedAt = SystemClock.uptimeMillis();
+            }
+        }
+    }
 
-                Intent postReply = new Intent().setClass(ThreadDisplayActivity.this, PostReplyActivity.class);
-                postReply.putExtra(Constants.THREAD, mThread);
-                postReply.putExtra(Constants.QUOTE, aResult);
-                postReply.putExtra(Constants.EDITING, true);
-                postReply.putExtra(Constants.POST_ID, mPostId);
+    private static boolean hasUnread(ArrayList<AwfulPost> aPosts) {
+        for (AwfulPost post : aPosts) {
+            if (!post.isPreviouslyRead()) {
+                return true;
+            }
+        }
 
-				startActivityForResult(postReply, 0);
+        return false;
+    }
+
+    private class PrefetchScrollListener implements OnScrollListener {
+        public void onScroll(AbsListView aView, int aFirstVisibleItem, 
+                int aVisibleItemCount, int aTotalItemCount) {
+            if (aTotalItemCount > 0 && 
+                    aFirstVisibleItem + aVisibleItemCount + PREFETCH_DISTANCE >= aTotalItemCount) {
+                prefetchNextPage();
             }
         }
+
+        public void onScrollStateChanged(AbsListView aView, int aScrollState) {
+        }
     }
 
-    private class ParsePostQuoteTask extends AsyncTask<Long, Void, String> {
+    private class ParseEditPostTask extends AsyncTask<Long, Void, String> {
+        private String mPostId;
+
         public void onPreExecute() {
             mDialog = ProgressDialog.show(ThreadDisplayActivity.this, "Loading", 
                 "Hold on...", true);
@@ -491,7 +805,9 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
                     AwfulPostAdapter adapter = (AwfulPostAdapter) mPostList.getAdapter();
                     AwfulPost selected = (AwfulPost) adapter.getItem(aParams[0].intValue());
 
-                    result = Reply.getQuote(selected.getId());
+                    mPostId = selected.getId();
+
+                    result = Reply.getPost(selected.getId());
                 } catch (Exception e) {
                     e.printStackTrace();
                     Log.i(TAG, e.toString());
@@ -507,15 +823,30 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
                 Intent postReply = new Intent().setClass(ThreadDisplayActivity.this, PostReplyActivity.class);
                 postReply.putExtra(Constants.THREAD, mThread);
                 postReply.putExtra(Constants.QUOTE, aResult);
+                postReply.putExtra(Constants.EDITING, true);
+                postReply.putExtra(Constants.POST_ID, mPostId);
 
 				startActivityForResult(postReply, 0);
             }
         }
     }
 
-    private class FetchThreadTask extends AsyncTask<AwfulThread, Void, AwfulThread> {
+    /**
+     * Loads a page of posts. If the page is in the local cache it's shown
+     * straight away while the site is asked for a fresh copy, which then
+     * replaces it without moving the list.
+     */
+    private class FetchThreadTask extends AsyncTask<AwfulThread, AwfulThread, AwfulThread> {
 		private boolean mForceLastPage = false;
 		private int mPage;
+		private AwfulThread mCached;
+		private int mCachedPage = 0;
+		private int mShownPage = 0;
+		private boolean mFailed = false;
+		private int mRestorePosition = -1;
+		private int mRestoreTop;
+		private AwfulThread mPrefetched;
+		private String mViewedUrl;
 
 		public FetchThreadTask() {}
 
@@ -527,53 +858,180 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
 			mPage = aPage;
 		}
 
+		/**
+		 * Scrolls the cached page to the given spot instead of the last read
+		 * post.
+		 */
+		public void setRestorePosition(int aPosition, int aTop) {
+			mRestorePosition = aPosition;
+			mRestoreTop      = aTop;
+		}
+
+		/**
+		 * Shows a page fetched ahead of time instead of going to the site.
+		 */
+		public void setPrefetched(AwfulThread aPrefetched) {
+			mPrefetched = aPrefetched;
+		}
+
         public void onPreExecute() {
-            mDialog = ProgressDialog.show(ThreadDisplayActivity.this, "Loading", 
-                "Hold on...", true);
+            setUpdating(true);
+
+            if (mThread != null && mThread.getPosts() != null && mPostList.getAdapter() != null) {
+                mShownPage = mThread.getCurrentPage();
+            }
         }
 
         public AwfulThread doInBackground(AwfulThread... aParams) {
-            if (!isCancelled()) {
+            if (!isCancelled() && mPrefetched != null) {
+                aParams[0].setPosts(mPrefetched.getPosts());
+                aParams[0].setCurrentPage(mPrefetched.getCurrentPage());
+                aParams[0].setLastPage(mPrefetched.getLastPage());
+
+                // Cached just as if it had been fetched now, which also moves
+                // the local read state on to it
+                WriteBehindQueue.getInstance(ThreadDisplayActivity.this)
+                    .enqueueThreadPage(aParams[0]);
+
+                // The prefetch put the site's marker back, so it's moved on
+                // to the end of this page once it's showing, as viewing it
+                // would have
+                ArrayList<AwfulPost> posts = mPrefetched.getPosts();
+                if (hasUnread(posts) && !posts.isEmpty()) {
+                    mViewedUrl = posts.get(posts.size() - 1).getLastReadUrl();
+                }
+            } else if (!isCancelled()) {
+                // After posting we want whatever the last page is now, which
+                // the cache can't know
+                if (!mForceLastPage) {
+                    showCachedPage(aParams[0]);
+                }
+
                 try {
                     if (mPage == 0) {
                         // We set the unread count to -1 if the user has never
                         // visited that thread before
-                        if (aParams[0].getUnreadCount() > -1 || mForceLastPage) {
+                        if (mForceLastPage) {
                             aParams[0].getThreadPosts();
+                        } else if (aParams[0].getUnreadCount() > -1) {
+                            aParams[0].getNewPosts(ThreadDisplayActivity.this);
                         } else {
                             aParams[0].getThreadPosts(1);
                         }
                     } else {
                         aParams[0].getThreadPosts(mPage);
                     }
+
+                    // Hand the page off to be cached; this returns immediately
+                    WriteBehindQueue.getInstance(ThreadDisplayActivity.this)
+                        .enqueueThreadPage(aParams[0]);
                 } catch (Exception e) {
                     e.printStackTrace();
                     Log.i(TAG, e.toString());
+                    mFailed = true;
                 }
             }
 
             return aParams[0];
         }
 
+        private void showCachedPage(AwfulThread aThread) {
+            int page = mPage;
+            if (page == 0) {
+                // Threads never visited start at page one, otherwise go to
+                // the first unread post if we know where it is, or back to
+                // where the reader was last time
+                if (aThread.getUnreadCount() > -1) {
+                    page = aThread.getLocalNewPostPage(ThreadDisplayActivity.this);
+                } else {
+                    page = 1;
+                }
+            }
+
+            AwfulThread cached = new AwfulThread(aThread.getThreadId());
+            cached.setTitle(aThread.getTitle());
+
+            if (cached.getCachedThreadPosts(ThreadDisplayActivity.this, page)) {
+                mCached     = cached;
+                mCachedPage = cached.getCurrentPage();
+
+                WriteBehindQueue.getInstance(ThreadDisplayActivity.this)
+                    .touchPage(cached.getThreadId(), mCachedPage);
+
+                publishProgress(cached);
+            }
+        }
+
+        public void onProgressUpdate(AwfulThread... aCached) {
+            if (!isCancelled()) {
+                if (mRestorePosition >= 0) {
+                    mPostList.setAdapter(generateAdapter(aCached[0].getPosts()));
+                    mPostList.setSelectionFromTop(mRestorePosition, mRestoreTop);
+                } else {
+                    setListAdapter(aCached[0].getPosts());
+                }
+
+                boolean noTitle = mTitle.getText() == null || mTitle.getText().length() == 0;
+                if (noTitle && aCached[0].getTitle() != null) {
+                    mTitle.setText(Html.fromHtml(aCached[0].getTitle()));
+                }
+            }
+        }
+
+        private boolean isShowing(int aPage) {
+            int shown = mCachedPage > 0 ? mCachedPage : mShownPage;
+
+            return shown > 0 && shown == aPage;
+        }
+
         public void onPostExecute(AwfulThread aResult) {
             if (!isCancelled()) {
-                mThread = aResult;
-                setListAdapter();
+                setUpdating(false);
+
+                if (mFailed && mCached != null) {
+                    // Nothing new to show, so leave the cached copy up and
+                    // page on from it
+                    mThread.setPosts(mCached.getPosts());
+                    mThread.setCurrentPage(mCached.getCurrentPage());
+                    mThread.setLastPage(mCached.getLastPage());
+                } else if (isShowing(aResult.getCurrentPage())) {
+                    mThread = aResult;
+
+                    // Same page the reader is already looking at, either from
+                    // the cache or a refresh; swap the posts in under them
+                    // rather than jumping back to the last read post
+                    updateListAdapter(mThread.getPosts());
+                } else {
+                    mThread = aResult;
+                    setListAdapter();
+                }
 
                 // If we're loading a thread from ChromeToPhone we have to set the 
                 // title now
-                if (mTitle.getText() == null || mTitle.getText().length() == 0) {
+                boolean noTitle = mTitle.getText() == null || mTitle.getText().length() == 0;
+                if (noTitle && mThread.getTitle() != null) {
                     mTitle.setText(Html.fromHtml(mThread.getTitle()));
                 }
 
-                if (mThread.getCurrentPage() == mThread.getLastPage()) {
-                    mNext.setVisibility(View.GONE);
-                } else {
-                    mNext.setVisibility(View.VISIBLE);
+                setNextVisibility();
+
+                if (mViewedUrl != null) {
+                    new MarkLastReadTask(true).execute(mThread.getThreadId(), mViewedUrl);
                 }
 
-                if (mDialog != null) {
-                    mDialog.dismiss();
+                // Have the reply form ready before anyone asks for it
+                if (!mFailed) {
+                    FormTokenCache.prefetch(mThread.getThreadId());
+                }
+
+                // A reply went out while this was running, and its page is
+                // newer than anything fetched here. A fetch started since
+                // will show it instead.
+                if (mPostedPage != null && mFetchTask == this) {
+                    AwfulThread posted = mPostedPage;
+                    mPostedPage = null;
+
+                    showPostedPage(posted);
                 }
             }
         }
@@ -608,6 +1066,15 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
     		mBaseAdapter = base;
     	}
 
+    	/**
+    	 * Replaces the posts in place. The wrappers don't pass change
+    	 * notifications through, so they're sent from here.
+    	 */
+    	public void setPosts(ArrayList<AwfulPost> aPosts) {
+    		mBaseAdapter.setPosts(aPosts);
+    		notifyDataSetChanged();
+    	}
+
 		@Override
 		public int getPositionForSection(int section) {
 			return section;
@@ -642,6 +1109,17 @@ public class ThreadDisplayActivity extends AwfulActivity implements OnSharedPref
             mViewResource = aViewResource;
         }
 
+        /**
+         * Replaces the posts without telling anyone; see
+         * {@link AwfulPostAdapter#setPosts}.
+         */
+        public void setPosts(ArrayList<AwfulPost> aPosts) {
+            if (aPosts != mPosts) {
+                mPosts.clear();
+                mPosts.addAll(aPosts);
+            }
+        }
+
         private void startActivityForLink(String baseUrl, HashMap<String, String> params) {
         	String paramString = NetworkUtils.getQueryStringParameters(params);
 			Uri uri = Uri.parse(baseUrl + paramString);
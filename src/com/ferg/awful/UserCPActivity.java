@@ -30,7 +30,6 @@ package com.ferg.awful;
 import java.util.ArrayList;
 
 import android.app.Activity;
-import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -55,8 +54,9 @@ import android.widget.TextView;
 import org.htmlcleaner.TagNode;
 
 import com.ferg.awful.constants.Constants;
-import com.ferg.awful.list.ForumArrayAdapter;
+import com.ferg.awful.list.ThreadCursorAdapter;
 import com.ferg.awful.network.NetworkUtils;
+import com.ferg.awful.provider.WriteBehindQueue;
 import com.ferg.awful.thread.AwfulForum;
 import com.ferg.awful.thread.AwfulThread;
 
@@ -64,10 +64,10 @@ public class UserCPActivity extends AwfulActivity {
     private static final String TAG = "ThreadsActivity";
 
     private FetchThreadsTask mFetchTask;
-    private ForumArrayAdapter mAdapter;
+    private ThreadCursorAdapter mAdapter;
+    private boolean mLoaded;
     private ImageButton mHome;
     private ListView mThreadList;
-	private ProgressDialog mDialog;
     private SharedPreferences mPrefs;
     private TextView mTitle;
 
@@ -86,7 +86,8 @@ public class UserCPActivity extends AwfulActivity {
         mTitle.setText(getString(R.string.user_cp));
 		mHome.setOnClickListener(onButtonClick);
 
-		mAdapter = new ForumArrayAdapter(this);
+		mAdapter = new ThreadCursorAdapter(this, AwfulThread.CONTENT_URI, 
+                AwfulThread.BOOKMARKED + "=1", null, AwfulThread.BOOKMARK_POSITION);
 		mThreadList.setAdapter(mAdapter);
 		mThreadList.setOnItemClickListener(onThreadSelected);
 		
@@ -94,13 +95,13 @@ public class UserCPActivity extends AwfulActivity {
 		boolean loggedIn = NetworkUtils.restoreLoginCookies(this);
 
 		if (loggedIn) {
-            final ArrayList<AwfulThread> retainedThreadsList = (ArrayList<AwfulThread>) getLastNonConfigurationInstance();
+            // The cursor already holds the cached bookmarks, so we only need
+            // to refresh if that hasn't happened before a rotation
+            mLoaded = getLastNonConfigurationInstance() != null;
 
-            if (retainedThreadsList == null) {
+            if (!mLoaded) {
                 mFetchTask = new FetchThreadsTask();
                 mFetchTask.execute();
-            } else {
-                mAdapter.setThreads(retainedThreadsList);
             }
 		} else {
 			startActivityForResult(new Intent().setClass(this, AwfulLoginActivity.class), 0);
@@ -111,9 +112,7 @@ public class UserCPActivity extends AwfulActivity {
     public void onPause() {
         super.onPause();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mFetchTask != null) {
             mFetchTask.cancel(true);
@@ -124,9 +123,7 @@ public class UserCPActivity extends AwfulActivity {
     public void onStop() {
         super.onStop();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mFetchTask != null) {
             mFetchTask.cancel(true);
@@ -137,13 +134,15 @@ public class UserCPActivity extends AwfulActivity {
     public void onDestroy() {
         super.onDestroy();
 
-        if (mDialog != null) {
-            mDialog.dismiss();
-        }
+        setUpdating(false);
 
         if (mFetchTask != null) {
             mFetchTask.cancel(true);
         }
+
+        if (mAdapter != null) {
+            mAdapter.close();
+        }
     }
     
     @Override
@@ -177,7 +176,7 @@ public class UserCPActivity extends AwfulActivity {
 
     @Override
     public Object onRetainNonConfigurationInstance() {
-        return mAdapter.getThreads();
+        return mLoaded ? Boolean.TRUE : null;
     }
 
     private View.OnClickListener onButtonClick = new View.OnClickListener() {
@@ -190,6 +189,10 @@ public class UserCPActivity extends AwfulActivity {
         }
     };
 
+    /**
+     * Refreshes the bookmarks in the provider. The list shows the cached rows
+     * until the new ones are written.
+     */
     private class FetchThreadsTask extends AsyncTask<String, Void, ArrayList<AwfulThread>> {
         private int mPage;
 
@@ -200,12 +203,11 @@ public class UserCPActivity extends AwfulActivity {
         }
 
         public void onPreExecute() {
-            mDialog = ProgressDialog.show(UserCPActivity.this, "Loading", 
-                    "Hold on...", true);
+            setUpdating(true);
         }
 
         public ArrayList<AwfulThread> doInBackground(String... aParams) {
-            ArrayList<AwfulThread> result = new ArrayList<AwfulThread>();
+            ArrayList<AwfulThread> result = null;
 
             if (!isCancelled()) {
                 try {
@@ -214,6 +216,8 @@ public class UserCPActivity extends AwfulActivity {
                     threads = AwfulThread.getUserCPThreads();
 
                     result = AwfulThread.parseForumThreads(threads);
+                    WriteBehindQueue.getInstance(UserCPActivity.this)
+                        .enqueueBookmarks(result);
                 } catch (Exception e) {
                     e.printStackTrace();
                     Log.i(TAG, e.toString());
@@ -225,16 +229,17 @@ public class UserCPActivity extends AwfulActivity {
 
         public void onPostExecute(ArrayList<AwfulThread> aResult) {
             if (!isCancelled()) {
-            	mAdapter.setThreads(aResult);
+                // No result means the fetch failed and the cached list stays up
+                mLoaded = aResult != null;
 
-                mDialog.dismiss();
+                setUpdating(false);
             }
         }
     }
 
 	private AdapterView.OnItemClickListener onThreadSelected = new AdapterView.OnItemClickListener() {
 		public void onItemClick(AdapterView<?> aParent, View aView, int aPosition, long aId) {
-            AwfulThread thread = (AwfulThread) mAdapter.getItem(aPosition);
+            AwfulThread thread = mAdapter.getItem(aPosition);
 
             Intent viewThread = new Intent().setClass(UserCPActivity.this, ThreadDisplayActivity.class);
             viewThread.putExtra(Constants.THREAD, thread);
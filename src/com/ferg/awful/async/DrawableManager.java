@@ -18,88 +18,117 @@ KIND, either express or implied.  See the License for the
 specific language governing permissions and limitations
 under the License.    
 */
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.util.HashMap;
-import java.util.Map;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import java.util.WeakHashMap;
 
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.ferg.awful.image.ImageCache;
+import com.ferg.awful.image.ImageLoader;
+
+/**
+ * Loads remote images into ImageViews through the shared
+ * {@link ImageLoader}, so no caller ever starts a thread of its own.
+ *
+ * Like ThumbnailAdapter, the view's tag holds the URL it's waiting for, so
+ * an image that arrives after the view has moved on to another one is
+ * dropped. Each view has at most one load queued at a time, and holds on
+ * to the bitmap it shows until it's given another.
+ */
 public class DrawableManager {
-    private final Map<String, Drawable> drawableMap;
+    private static final String TAG = "DrawableManager";
+
+    private final Context context;
+    private final ImageCache cache;
+    private final ImageLoader loader;
 
-    public DrawableManager() {
-        drawableMap = new HashMap<String, Drawable>();
+    private final WeakHashMap<ImageView, ImageLoader.Request> pending = 
+        new WeakHashMap<ImageView, ImageLoader.Request>();
+    private final WeakHashMap<ImageView, Bitmap> shown = 
+        new WeakHashMap<ImageView, Bitmap>();
+
+    public DrawableManager(Context context) {
+        this.context = context.getApplicationContext();
+        this.cache = ImageCache.getInstance(context);
+        this.loader = ImageLoader.getInstance(context);
     }
 
+    /**
+     * Loads an image, blocking until it's here. Never call it from the UI
+     * thread.
+     */
     public Drawable fetchDrawable(String urlString) {
-        if (drawableMap.containsKey(urlString)) {
-            return drawableMap.get(urlString);
-        }
-
-        Log.d(this.getClass().getSimpleName(), "image url:" + urlString);
-        try {
-            InputStream is = fetch(urlString);
-            Drawable drawable = Drawable.createFromStream(is, "src");
-            drawableMap.put(urlString, drawable);
-            Log.d(this.getClass().getSimpleName(), "got a thumbnail drawable: " + drawable.getBounds() + ", "
-                    + drawable.getIntrinsicHeight() + "," + drawable.getIntrinsicWidth() + ", "
-                    + drawable.getMinimumHeight() + "," + drawable.getMinimumWidth());
-            return drawable;
-        } catch (MalformedURLException e) {
-            Log.e(this.getClass().getSimpleName(), "fetchDrawable failed", e);
-            return null;
-        } catch (IOException e) {
-            Log.e(this.getClass().getSimpleName(), "fetchDrawable failed", e);
+        Bitmap bitmap = cache.load(urlString);
+        if (bitmap == null) {
+            Log.e(TAG, "fetchDrawable failed");
             return null;
         }
+
+        return new BitmapDrawable(context.getResources(), bitmap);
     }
 
+    /**
+     * Shows an image in the view once it's loaded. Must be called from the
+     * UI thread.
+     */
     public void fetchDrawableOnThread(final String urlString, final ImageView imageView) {
+        ImageLoader.Request previous = pending.remove(imageView);
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        imageView.setTag(urlString);
+
     	// State sanity: url is guaranteed to never be null in DownloadedDrawable and cache keys.
         if (urlString == null) {
             imageView.setImageDrawable(null);
+            unshow(imageView);
             return;
         }
         
-    	if (drawableMap.containsKey(urlString)) {
-            imageView.setImageDrawable(drawableMap.get(urlString));
+        Bitmap cached = cache.acquire(urlString);
+    	if (cached != null) {
+            show(imageView, cached);
+            return;
         }
 
-        final Handler handler = new Handler() {
-            @Override
-            public void handleMessage(Message message) {
-                imageView.setImageDrawable((Drawable) message.obj);
-            }
-        };
+        // Same placeholder ThumbnailAdapter shows while it waits
+        imageView.setImageResource(android.R.drawable.ic_menu_rotate);
+        unshow(imageView);
 
-        
-        Thread thread = new Thread() {
-            @Override
-            public void run() {
-                //TODO : set imageView to a "pending" image
-                Drawable drawable = fetchDrawable(urlString);
-                Message message = handler.obtainMessage(1, drawable);
-                handler.sendMessage(message);
+        pending.put(imageView, loader.load(urlString, 0, ImageLoader.PRIORITY_VISIBLE, 
+                    new ImageLoader.Callback() {
+            public void onImageLoaded(String url, Bitmap bitmap) {
+                pending.remove(imageView);
+
+                if (url.equals(imageView.getTag())) {
+                    show(imageView, bitmap);
+                } else {
+                    cache.release(bitmap);
+                }
             }
-        };
-        thread.start();
+        }));
     }
 
-    private InputStream fetch(String urlString) throws MalformedURLException, IOException {
-        DefaultHttpClient httpClient = new DefaultHttpClient();
-        HttpGet request = new HttpGet(urlString);
-        HttpResponse response = httpClient.execute(request);
-        return response.getEntity().getContent();
+    private void show(ImageView imageView, Bitmap bitmap) {
+        Bitmap previous = shown.remove(imageView);
+
+        if (bitmap != null) {
+            shown.put(imageView, bitmap);
+        }
+        imageView.setImageBitmap(bitmap);
+
+        cache.release(previous);
     }
 
+    /**
+     * Hands back the view's bitmap once something else is showing in it.
+     */
+    private void unshow(ImageView imageView) {
+        cache.release(shown.remove(imageView));
+    }
 }
@@ -68,6 +68,7 @@ public class Constants {
     public static final String THREAD_ID = "thread_id";
     public static final String POST_ID   = "post_id";
     public static final String QUOTE     = "quote";
+    public static final String QUOTE_ID  = "quote_id";
     public static final String PAGE      = "page";
     public static final String EDITING   = "editing";
 
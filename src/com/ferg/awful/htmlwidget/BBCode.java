@@ -0,0 +1,312 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.htmlwidget;
+
+import java.util.LinkedList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import android.text.Editable;
+import android.text.Spanned;
+
+import com.ferg.awful.image.SmilieCache;
+
+/**
+ * Turns post HTML back into the BBCode it was most likely written with.
+ *
+ * {@link Html#fromHtml} walks the post and lays out its text, while this
+ * writes the forum tags in among it as each tag comes by, and cuts out what
+ * the site added itself. The result won't always match what the site would
+ * give back character for character, but it's close enough to quote from.
+ */
+public class BBCode implements Html.TagHandler {
+    private static final Pattern POST_ID    = Pattern.compile("postid=(\\d+)");
+    private static final Pattern YOUTUBE_ID = Pattern.compile("youtube\\.com/v/([\\w-]+)");
+    private static final Pattern BLANK_LINES = Pattern.compile("\n{3,}");
+
+    private static final String POSTED = "posted:";
+
+    // Where each open tag's contents start, innermost last
+    private LinkedList<Integer> mStarts = new LinkedList<Integer>();
+
+    // Inside code blocks the <pre> is part of the block
+    private int mCode = 0;
+
+    private BBCode() { }
+
+    /**
+     * Converts a post's HTML to BBCode.
+     *
+     * @return The BBCode, or null if the HTML couldn't be read
+     */
+    public static String fromHtml(String aHtml) {
+        if (aHtml == null) {
+            return null;
+        }
+
+        Spanned text = Html.fromHtml(aHtml, null, new BBCode());
+        if (text == null) {
+            return null;
+        }
+
+        return BLANK_LINES.matcher(text).replaceAll("\n\n").trim();
+    }
+
+    public void handleStartTag(Element aNode, Editable aOutput) {
+        String tag = aNode.getTagName();
+        String cssClass = aNode.getAttribute("class");
+
+        if (isSkipped(aNode, tag, cssClass)) {
+            // Headings go along with the line break before them
+            mStarts.addLast(isInBlock(aNode) ? mStarts.getLast() : aOutput.length());
+            return;
+        }
+
+        if (tag.equalsIgnoreCase("div") && cssClass.contains("bbc-block")) {
+            startBlock(aNode, cssClass, aOutput);
+        } else if (cssClass.contains("bbc-spoiler")) {
+            aOutput.append("[spoiler]");
+        } else if (tag.equalsIgnoreCase("b") || tag.equalsIgnoreCase("strong")) {
+            aOutput.append("[b]");
+        } else if (tag.equalsIgnoreCase("i") || tag.equalsIgnoreCase("em")) {
+            aOutput.append("[i]");
+        } else if (tag.equalsIgnoreCase("u")) {
+            aOutput.append("[u]");
+        } else if (tag.equalsIgnoreCase("s") || tag.equalsIgnoreCase("del") ||
+                tag.equalsIgnoreCase("strike")) {
+            aOutput.append("[s]");
+        } else if (tag.equalsIgnoreCase("sub")) {
+            aOutput.append("[sub]");
+        } else if (tag.equalsIgnoreCase("sup")) {
+            aOutput.append("[super]");
+        } else if (tag.equalsIgnoreCase("tt")) {
+            aOutput.append("[fixed]");
+        } else if (tag.equalsIgnoreCase("pre") && mCode == 0) {
+            aOutput.append("[pre]");
+        } else if (tag.equalsIgnoreCase("img")) {
+            handleImg(aNode, cssClass, aOutput);
+        } else if (tag.equalsIgnoreCase("embed")) {
+            handleEmbed(aNode, aOutput);
+        }
+
+        mStarts.addLast(aOutput.length());
+    }
+
+    public void handleEndTag(Element aNode, Editable aOutput) {
+        String tag = aNode.getTagName();
+        String cssClass = aNode.getAttribute("class");
+        int start = mStarts.removeLast();
+
+        if (isSkipped(aNode, tag, cssClass)) {
+            aOutput.delete(start, aOutput.length());
+        } else if (tag.equalsIgnoreCase("div") && cssClass.contains("bbc-block")) {
+            endBlock(cssClass, aOutput);
+        } else if (cssClass.contains("bbc-spoiler")) {
+            aOutput.append("[/spoiler]");
+        } else if (tag.equalsIgnoreCase("b") || tag.equalsIgnoreCase("strong")) {
+            aOutput.append("[/b]");
+        } else if (tag.equalsIgnoreCase("i") || tag.equalsIgnoreCase("em")) {
+            aOutput.append("[/i]");
+        } else if (tag.equalsIgnoreCase("u")) {
+            aOutput.append("[/u]");
+        } else if (tag.equalsIgnoreCase("s") || tag.equalsIgnoreCase("del") ||
+                tag.equalsIgnoreCase("strike")) {
+            aOutput.append("[/s]");
+        } else if (tag.equalsIgnoreCase("sub")) {
+            aOutput.append("[/sub]");
+        } else if (tag.equalsIgnoreCase("sup")) {
+            aOutput.append("[/super]");
+        } else if (tag.equalsIgnoreCase("tt")) {
+            aOutput.append("[/fixed]");
+        } else if (tag.equalsIgnoreCase("pre") && mCode == 0) {
+            aOutput.append("[/pre]");
+        } else if (tag.equalsIgnoreCase("a")) {
+            endLink(aNode, start, aOutput);
+        }
+    }
+
+    /**
+     * Whether a tag's contents are left out, along with the tag.
+     */
+    private static boolean isSkipped(Element aNode, String aTag, String aClass) {
+        if (aTag.equalsIgnoreCase("p") && aClass.contains("editedby")) {
+            // The site adds this, nobody wrote it
+            return true;
+        } else if (aTag.equalsIgnoreCase("script") || aTag.equalsIgnoreCase("style") ||
+                aTag.equalsIgnoreCase("param")) {
+            return true;
+        } else if (aTag.equalsIgnoreCase("h4") || aTag.equalsIgnoreCase("h5")) {
+            // The "so-and-so posted:" or "code:" heading, already dealt with
+            return isInBlock(aNode);
+        }
+
+        return false;
+    }
+
+    private static boolean isInBlock(Element aNode) {
+        Node parent = aNode.getParentNode();
+
+        return parent instanceof Element && 
+            ((Element) parent).getAttribute("class").contains("bbc-block");
+    }
+
+    private static String getHeading(Element aBlock, String aTag) {
+        NodeList headings = aBlock.getElementsByTagName(aTag);
+
+        return headings.getLength() > 0 ? getText(headings.item(0)).trim() : null;
+    }
+
+    /**
+     * Collects the text under a node. Node.getTextContent() would do, but it
+     * only turned up in API 8.
+     */
+    private static String getText(Node aNode) {
+        StringBuilder result = new StringBuilder();
+        appendText(aNode, result);
+
+        return result.toString();
+    }
+
+    private static void appendText(Node aNode, StringBuilder aResult) {
+        NodeList children = aNode.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    appendText(child, aResult);
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    aResult.append(child.getNodeValue());
+                    break;
+            }
+        }
+    }
+
+    private void startBlock(Element aBlock, String aClass, Editable aOutput) {
+        newLine(aOutput);
+
+        if (aClass.contains("code") || aClass.contains("php")) {
+            aOutput.append(aClass.contains("php") ? "[php]" : "[code]");
+            mCode++;
+            return;
+        }
+
+        // Quotes are headed "so-and-so posted:", linking back to the post
+        String heading = getHeading(aBlock, "h4");
+        if (heading == null || !heading.endsWith(POSTED)) {
+            aOutput.append("[quote]\n");
+            return;
+        }
+
+        String name = heading.substring(0, heading.length() - POSTED.length()).trim();
+        aOutput.append("[quote=\"").append(name).append("\"");
+
+        NodeList links = aBlock.getElementsByTagName("a");
+        if (links.getLength() > 0) {
+            Matcher postId = POST_ID.matcher(((Element) links.item(0)).getAttribute("href"));
+            if (postId.find()) {
+                aOutput.append(" post=\"").append(postId.group(1)).append("\"");
+            }
+        }
+
+        aOutput.append("]\n");
+    }
+
+    private void endBlock(String aClass, Editable aOutput) {
+        newLine(aOutput);
+
+        if (aClass.contains("code") || aClass.contains("php")) {
+            // The code runs right up to the closing tag
+            aOutput.delete(aOutput.length() - 1, aOutput.length());
+            aOutput.append(aClass.contains("php") ? "[/php]" : "[/code]");
+            mCode--;
+        } else {
+            aOutput.append("[/quote]");
+        }
+
+        aOutput.append("\n");
+    }
+
+    /**
+     * Ends the output with exactly one line break, unless it's empty.
+     */
+    private static void newLine(Editable aOutput) {
+        int length = aOutput.length();
+        while (length > 0 && aOutput.charAt(length - 1) == '\n') {
+            length--;
+        }
+
+        aOutput.delete(length, aOutput.length());
+        if (length > 0) {
+            aOutput.append("\n");
+        }
+    }
+
+    private static void endLink(Element aNode, int aStart, Editable aOutput) {
+        String href = aNode.getAttribute("href");
+
+        // Bare addresses are linked by the site on their own
+        String text = aOutput.subSequence(aStart, aOutput.length()).toString();
+        if (href.length() == 0 || href.equals(text.trim())) {
+            return;
+        }
+
+        aOutput.insert(aStart, "[url=" + href + "]");
+        aOutput.append("[/url]");
+    }
+
+    private static void handleImg(Element aNode, String aClass, Editable aOutput) {
+        String src   = aNode.getAttribute("src");
+        String title = aNode.getAttribute("title");
+
+        // Smilies carry their code as the title
+        if (SmilieCache.isSmilie(src) && title.length() > 0) {
+            aOutput.append(title);
+        } else if (aClass.contains("timg")) {
+            aOutput.append("[timg]").append(src).append("[/timg]");
+        } else {
+            aOutput.append("[img]").append(src).append("[/img]");
+        }
+    }
+
+    private static void handleEmbed(Element aNode, Editable aOutput) {
+        Matcher videoId = YOUTUBE_ID.matcher(aNode.getAttribute("src"));
+
+        if (videoId.find()) {
+            aOutput.append("[video]http://www.youtube.com/watch?v=")
+                .append(videoId.group(1)).append("[/video]");
+        }
+    }
+}
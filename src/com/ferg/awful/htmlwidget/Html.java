@@ -19,6 +19,8 @@
  * - Added Attributes parameter to TagHandler
  * - Changed access level to package-protected
  * - Changed package name
+ * - Pass every tag on to the TagHandler, after any handling of its own
+ * - Keep whitespace inside <pre> tags as well as <code>
  */
 
 package com.ferg.awful.htmlwidget;
@@ -548,6 +550,7 @@ class HtmlToSpannedConverter {
             start(mSpannableStringBuilder, new Monospace());
         } else if (tag.equalsIgnoreCase("pre")) {
             start(mSpannableStringBuilder, new Monospace());
+            mNumTagsEnforcingTrueWhitespace++;
         } else if (tag.equalsIgnoreCase("code")) {
         	mNumTagsEnforcingTrueWhitespace++;
         } else if (tag.equalsIgnoreCase("a")) {
@@ -565,7 +568,10 @@ class HtmlToSpannedConverter {
             start(mSpannableStringBuilder, new Header(tag.charAt(1) - '1'));
         } else if (tag.equalsIgnoreCase("img") && mImageGetter != null) {
             startImg(mSpannableStringBuilder, node, mImageGetter);
-        } else if (mTagHandler != null) {
+            return;
+        }
+
+        if (mTagHandler != null) {
             mTagHandler.handleStartTag(node, mSpannableStringBuilder);
         }
     }
@@ -608,6 +614,7 @@ class HtmlToSpannedConverter {
             end(mSpannableStringBuilder, Monospace.class, new TypefaceSpan("monospace"));
         } else if (tag.equalsIgnoreCase("pre")) {
         	end(mSpannableStringBuilder, Monospace.class, new TypefaceSpan("monospace"));
+        	mNumTagsEnforcingTrueWhitespace--;
         } else if (tag.equalsIgnoreCase("code")) {
         	mNumTagsEnforcingTrueWhitespace--;
         } else if (tag.equalsIgnoreCase("a")) {
@@ -623,7 +630,11 @@ class HtmlToSpannedConverter {
                 tag.charAt(1) >= '1' && tag.charAt(1) <= '6') {
             handleP(mSpannableStringBuilder);
             endHeader(mSpannableStringBuilder);
-        } else if (mTagHandler != null) {
+        } else if (tag.equalsIgnoreCase("img") && mImageGetter != null) {
+            return;
+        }
+
+        if (mTagHandler != null) {
             mTagHandler.handleEndTag(node, mSpannableStringBuilder);
         }
     }
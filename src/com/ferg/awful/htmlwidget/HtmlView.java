@@ -25,36 +25,39 @@ import android.content.Intent;
 import android.content.UriMatcher;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.InsetDrawable;
 import android.graphics.drawable.LayerDrawable;
 import android.net.Uri;
-import android.os.AsyncTask;
-import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.Editable;
 import android.text.Layout;
 import android.text.Spannable;
+import android.text.format.Formatter;
 import android.text.style.CharacterStyle;
+import android.text.style.ClickableSpan;
 import android.text.style.ImageSpan;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.View;
 import android.webkit.WebView;
 import android.widget.TextView;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.ref.SoftReference;
 import java.lang.reflect.Array;
-import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.RejectedExecutionException;
+
+import com.ferg.awful.image.DataSaver;
+import com.ferg.awful.image.ImageCache;
+import com.ferg.awful.image.ImageLoader;
+import com.ferg.awful.image.ImageProbe;
+import com.ferg.awful.image.SmilieCache;
 
 /**
  * A light-weight alternative to {@link WebView}.
@@ -141,7 +144,8 @@ public final class HtmlView extends TextView {
         if (videoId == null) {
             throw new NullPointerException();
         }
-        // Returns a 480x360 snapshot of the video
+        // Returns a 480x360 snapshot of the video, which is decoded at the
+        // size of the video frame
         return "http://img.youtube.com/vi/" + videoId + "/0.jpg";
     }
 
@@ -161,14 +165,31 @@ public final class HtmlView extends TextView {
     }
 
     /**
-     * Cache of recently used images.
+     * Keeps track of pending tasks.
      */
-    private static final Map<String, SoftReference<Bitmap>> sImageCache = new HashMap<String, SoftReference<Bitmap>>();
+    private final Set<ImageTask> mTasks = new HashSet<ImageTask>();
+
+    private final Rect mVisibleRect = new Rect();
 
     /**
-     * Keeps track of pending tasks.
+     * Loaded images waiting to be put in place, all at once, on the next
+     * frame.
      */
-    private final Set<ImageTask> mTasks = new HashSet<ImageTask>();
+    private final ArrayList<ImageTask> mFinishedTasks = new ArrayList<ImageTask>();
+
+    /**
+     * Images from the {@link ImageCache} in the current text, handed back
+     * when the text changes so their memory can be reused.
+     */
+    private final ArrayList<Bitmap> mShownBitmaps = new ArrayList<Bitmap>();
+
+    private static final long SWAP_DELAY = 16;
+
+    private final Runnable mSwapImages = new Runnable() {
+        public void run() {
+            swapImages();
+        }
+    };
 
     /**
      * The total number of tasks created for the last call to
@@ -208,6 +229,19 @@ public final class HtmlView extends TextView {
     
     private Drawable mDrawableLoadingImage;
 
+    private String mTapToLoadText;
+
+    /**
+     * Whether images not already on disk wait for a tap, decided when the
+     * HTML is set.
+     */
+    private boolean mDataSaver;
+
+    /**
+     * Images up to this many bytes load anyway.
+     */
+    private long mAutoLoadBytes;
+
     public HtmlView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
         loadDrawables();
@@ -266,6 +300,12 @@ public final class HtmlView extends TextView {
             mDrawableLoadingImage = resources.getDrawable(loadingImageResId);
             setBoundsToIntrinsicSize(mDrawableLoadingImage);
         }
+
+        int tapToLoadResId = resources.getIdentifier("tap_to_load_image", "string", packgeName);
+        if (tapToLoadResId == 0) {
+            throw new RuntimeException("R.string.tap_to_load_image is missing");
+        }
+        mTapToLoadText = resources.getString(tapToLoadResId);
     }
 
     /**
@@ -293,25 +333,77 @@ public final class HtmlView extends TextView {
         return drawable;
     }
 
-    @Override
-    public Parcelable onSaveInstanceState() {
-        cancelTasks();
-        Parcelable superState = super.onSaveInstanceState();
-        SavedState ss = new SavedState(superState);
-        ss.mHtml = mHtml;
-        return ss;
+    /**
+     * Creates a placeholder of the size an image will be, so nothing moves
+     * when it arrives. The loading image sits in the middle, and the layer
+     * {@link android.R.id#background} is replaced with the image itself.
+     */
+    private LayerDrawable createImageFrame(int width, int height) {
+        Drawable loading = getPlaceholderDrawable();
+        if (loading.getConstantState() != null) {
+            loading = loading.getConstantState().newDrawable(getResources());
+        }
+
+        int insetX = Math.max(0, (width - loading.getIntrinsicWidth()) / 2);
+        int insetY = Math.max(0, (height - loading.getIntrinsicHeight()) / 2);
+
+        LayerDrawable frame = createLayerDrawable(new InsetDrawable(loading, insetX, insetY, insetX, insetY));
+        frame.setId(0, android.R.id.background);
+        frame.setBounds(0, 0, width, height);
+
+        return frame;
     }
 
-    @Override
-    public void onRestoreInstanceState(Parcelable state) {
-        SavedState ss = (SavedState) state;
-        super.onRestoreInstanceState(ss.getSuperState());
-        String html = ss.mHtml;
-        if (html != null) {
-            setHtml(html);
+    /**
+     * Returns the size given by an image's width and height attributes,
+     * shrunk to fit the view if need be.
+     *
+     * @return {width, height}, or null if either is missing
+     */
+    private int[] getDeclaredSize(Element node) {
+        int width = parseDimension(node.getAttribute("width"));
+        int height = parseDimension(node.getAttribute("height"));
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        int maxWidth = getImageWidth();
+        if (width > maxWidth) {
+            height = height * maxWidth / width;
+            width = maxWidth;
+        }
+
+        return new int[] { width, Math.max(1, height) };
+    }
+
+    private static int parseDimension(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        value = value.trim();
+        if (value.endsWith("px")) {
+            value = value.substring(0, value.length() - 2);
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            // Percentages and the like can't be known up front
+            return 0;
         }
     }
 
+    /**
+     * The HTML isn't saved with the view; whoever set it keeps its own copy
+     * and sets it again, which keeps big posts out of the instance state.
+     */
+    @Override
+    public Parcelable onSaveInstanceState() {
+        cancelTasks();
+        return super.onSaveInstanceState();
+    }
+
     public void setHtmlChromeClient(HtmlChromeClient client) {
         if (client == null) {
             throw new NullPointerException();
@@ -319,13 +411,41 @@ public final class HtmlView extends TextView {
         mHtmlChromeClient = client;
     }
 
+    /**
+     * Returns the image if it's already in memory. It's held until the view
+     * shows something else.
+     */
     protected Bitmap getImage(String src) {
-        if (src != null) {
-            SoftReference<Bitmap> reference = sImageCache.get(src);
-            return reference != null ? reference.get() : null;
+        Bitmap bitmap = ImageCache.getInstance(getContext()).acquire(src);
+        if (bitmap != null) {
+            mShownBitmaps.add(bitmap);
+        }
+        return bitmap;
+    }
+
+    private void releaseImages() {
+        if (mShownBitmaps != null) {
+            ImageCache cache = ImageCache.getInstance(getContext());
+            for (Bitmap bitmap : mShownBitmaps) {
+                cache.release(bitmap);
+            }
+            mShownBitmaps.clear();
         } else {
-            return null;
+            // This can happen when setText is called
+            // indirectly by the superclass constructor.
+        }
+    }
+
+    /**
+     * Returns the widest an image can be shown, in pixels. Posts are set
+     * before they're laid out, so until then it's the width of the screen.
+     */
+    private int getImageWidth() {
+        int width = getWidth();
+        if (width <= 0) {
+            width = getResources().getDisplayMetrics().widthPixels;
         }
+        return Math.max(1, width - getTotalPaddingLeft() - getTotalPaddingRight());
     }
 
     private void handleEmbed(Element node, Editable output) {
@@ -382,8 +502,8 @@ public final class HtmlView extends TextView {
         int start = output.length();
         output.append("\uFFFC");
         int end = output.length();
-        output.setSpan(new ImageSpan(drawable, src), start, end,
-                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        ImageSpan span = new ImageSpan(drawable, src);
+        output.setSpan(span, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         if (intents != null) {
             output.setSpan(new IntentsSpan(intents), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
@@ -395,8 +515,9 @@ public final class HtmlView extends TextView {
                 snapshotDrawable.setBounds(frame.getBounds());
                 frame.setDrawableByLayerId(layerId, snapshotDrawable);
             } else {
-                ImageTask task = new ImageTask(snapshotUrl, frame, layerId);
-                executeImageTask(task);
+                // Snapshots are only fetched once the video is on screen
+                ImageTask task = new ImageTask(snapshotUrl, frame, layerId, span);
+                mTasks.add(task);
             }
         }
     }
@@ -410,39 +531,103 @@ public final class HtmlView extends TextView {
         output.append("\uFFFC");
         int end = output.length();
 
+        // Smilies share one bitmap between every post that shows them
+        if (SmilieCache.isSmilie(src)) {
+            Drawable smilie = SmilieCache.getInstance(getContext()).get(getResources(), src);
+            if (smilie != null) {
+                HtmlImageSpan span = new HtmlImageSpan(smilie, src, title, alt);
+                output.setSpan(span, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                return;
+            }
+        }
+
+        int[] declared = getDeclaredSize(node);
+
         Bitmap bitmap = getImage(src);
         if (bitmap != null) {
             Drawable drawable = createBitmapDrawable(bitmap);
+            if (declared != null) {
+                drawable.setBounds(0, 0, declared[0], declared[1]);
+            }
             HtmlImageSpan span = new HtmlImageSpan(drawable, src, title, alt);
             output.setSpan(span, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        } else if (isHeldBack(src)) {
+            ImageInfoDrawable placeholder = new ImageInfoDrawable(
+                    getResources().getDisplayMetrics().density, getImageWidth());
+            HtmlImageSpan span = new HtmlImageSpan(placeholder, src, title, alt);
+            TapToLoadSpan tap = new TapToLoadSpan(span, placeholder);
+            output.setSpan(span, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            output.setSpan(tap, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+            ImageProbe.Result info = ImageProbe.getInstance().get(src);
+            tap.describe(info);
+            if (info == null) {
+                ImageProbe.getInstance().probe(src, tap);
+            }
         } else {
-            Drawable placeholder = getPlaceholderDrawable();
+            // If the size is known up front the image can be dropped into
+            // the placeholder later without the text moving
+            int[] size = declared != null ? declared : ImageCache.getInstance(getContext()).getSize(src);
+            LayerDrawable frame = size != null ? createImageFrame(size[0], size[1]) : null;
+
+            Drawable placeholder = frame != null ? frame : getPlaceholderDrawable();
             HtmlImageSpan span = new HtmlImageSpan(placeholder, src, title, alt);
             output.setSpan(span, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             if (src != null) {
-                ImageTask task = new ImageTask(src, span);
+                ImageTask task = new ImageTask(src, span, frame);
                 executeImageTask(task);
             }
         }
     }
 
-    private void executeImageTask(ImageTask task) {
-        try {
-            task.execute();
-            mTasks.add(task);
-            mTotalTaskCount += 1;
-        } catch (RejectedExecutionException e) {
-            // AsyncTask will throw this if it has too many queued tasks.
-            logResourceError("Unable to load image", task.mUrl);
+    /**
+     * Whether an image should wait for a tap rather than load. Images already
+     * on disk cost nothing to show, and small ones load anyway. Smilies go
+     * straight to the {@link SmilieCache}, which keeps them on disk.
+     */
+    private boolean isHeldBack(String src) {
+        if (!mDataSaver || src == null || SmilieCache.isSmilie(src)) {
+            return false;
         }
+
+        if (ImageCache.getInstance(getContext()).getFile(src).exists()) {
+            return false;
+        }
+
+        return !isSmallEnough(ImageProbe.getInstance().get(src));
+    }
+
+    private boolean isSmallEnough(ImageProbe.Result info) {
+        return info != null && info.bytes >= 0 && info.bytes <= mAutoLoadBytes;
+    }
+
+    private void executeImageTask(ImageTask task) {
+        task.execute();
+        mTasks.add(task);
+        mTotalTaskCount += 1;
+    }
+
+    /**
+     * Starts a task that was waiting to come on screen.
+     */
+    private void startImageTask(ImageTask task) {
+        task.execute();
+        task.setPriority(ImageLoader.PRIORITY_VISIBLE);
+        mTotalTaskCount += 1;
+        updateProgress();
     }
 
     private void cancelTasks() {
         if (mTasks != null) {
             for (ImageTask task : mTasks) {
-                task.cancel(false);
+                task.cancel();
+            }
+            for (ImageTask task : mFinishedTasks) {
+                task.discard();
             }
             mTasks.clear();
+            mFinishedTasks.clear();
+            removeCallbacks(mSwapImages);
             mTotalTaskCount = 0;
             mCompleteTaskCount = 0;
             updateProgress();
@@ -463,6 +648,10 @@ public final class HtmlView extends TextView {
         mHtml = source;
 
         cancelTasks();
+        releaseImages();
+
+        mDataSaver = DataSaver.isOn(getContext());
+        mAutoLoadBytes = DataSaver.getAutoLoadBytes(getContext());
 
         // The Html.ImageGetter API is too limited because it does not provide
         // values for the 'alt' and 'title' attributes of image tags.
@@ -506,6 +695,59 @@ public final class HtmlView extends TextView {
         super.setText(text, type);
         mHtml = null;
         cancelTasks();
+        releaseImages();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        updateTaskPriorities();
+    }
+
+    /**
+     * Moves images on or near the screen ahead of the rest of the page, and
+     * everything else behind. Called on every draw, which is every frame
+     * while the list scrolls.
+     */
+    private void updateTaskPriorities() {
+        if (mTasks == null || mTasks.isEmpty()) {
+            return;
+        }
+
+        Layout layout = getLayout();
+        Spannable buffer = super.getEditableText();
+        if (layout == null || buffer == null) {
+            return;
+        }
+
+        boolean shown = getLocalVisibleRect(mVisibleRect);
+
+        // Images half a screen away are loaded as if they were showing, so
+        // they're usually in by the time they scroll in
+        int margin = getResources().getDisplayMetrics().heightPixels / 2;
+        int top = mVisibleRect.top - getTotalPaddingTop();
+        int bottom = mVisibleRect.bottom - getTotalPaddingTop();
+
+        for (ImageTask task : mTasks) {
+            boolean near = false;
+            boolean onScreen = false;
+
+            int offset = buffer.getSpanStart(task.mAnchor);
+            if (shown && offset != -1) {
+                int line = layout.getLineForOffset(offset);
+                int lineTop = layout.getLineTop(line);
+                int lineBottom = layout.getLineBottom(line);
+
+                near = lineBottom >= top - margin && lineTop <= bottom + margin;
+                onScreen = lineBottom >= top && lineTop <= bottom;
+            }
+
+            if (task.isStarted()) {
+                task.setPriority(near ? ImageLoader.PRIORITY_VISIBLE : ImageLoader.PRIORITY_OFFSCREEN);
+            } else if (onScreen) {
+                startImageTask(task);
+            }
+        }
     }
 
     @Override
@@ -559,6 +801,28 @@ public final class HtmlView extends TextView {
         }
     }
 
+    /**
+     * Puts every image that's arrived since the last frame in place in one
+     * go, so a post full of images is laid out again once rather than once
+     * per image.
+     */
+    private void swapImages() {
+        boolean resized = false;
+        for (ImageTask task : mFinishedTasks) {
+            resized |= task.apply();
+        }
+
+        mCompleteTaskCount += mFinishedTasks.size();
+        mFinishedTasks.clear();
+
+        // Swapped layers don't change the text, so the view has to be told
+        // to redraw
+        if (!resized) {
+            invalidate();
+        }
+        updateProgress();
+    }
+
     private void updateProgress() {
         int newProgress = 100;
         if (mTotalTaskCount != 0) {
@@ -571,7 +835,69 @@ public final class HtmlView extends TextView {
         mHtmlChromeClient.onProgressChanged(this, newProgress);
     }
 
-    private class ImageTask extends AsyncTask<Void, Void, Bitmap> {
+    /**
+     * Sits over an image that's waiting for a tap. It shows what the probe
+     * found out, and loads the image when it's tapped, or straight away if
+     * it turns out to be small.
+     */
+    private class TapToLoadSpan extends ClickableSpan implements ImageProbe.Callback {
+        private final HtmlImageSpan mImage;
+        private final ImageInfoDrawable mPlaceholder;
+
+        public TapToLoadSpan(HtmlImageSpan image, ImageInfoDrawable placeholder) {
+            mImage = image;
+            mPlaceholder = placeholder;
+        }
+
+        public void describe(ImageProbe.Result info) {
+            String detail = null;
+            if (info != null) {
+                if (info.width > 0 && info.height > 0) {
+                    detail = info.width + " \u00D7 " + info.height;
+                }
+                if (info.bytes >= 0) {
+                    String size = Formatter.formatFileSize(getContext(), info.bytes);
+                    detail = detail == null ? size : detail + ", " + size;
+                }
+            }
+            mPlaceholder.setText(detail, mTapToLoadText);
+        }
+
+        public void onProbed(String url, ImageProbe.Result info) {
+            Editable editableText = HtmlView.super.getEditableText();
+            if (editableText == null || editableText.getSpanStart(this) == -1) {
+                // The view has moved on to something else
+                return;
+            }
+
+            if (isSmallEnough(info)) {
+                load();
+            } else {
+                describe(info);
+                invalidate();
+            }
+        }
+
+        @Override
+        public void onClick(View widget) {
+            load();
+        }
+
+        private void load() {
+            Editable editableText = HtmlView.super.getEditableText();
+            if (editableText == null || editableText.getSpanStart(this) == -1) {
+                return;
+            }
+            editableText.removeSpan(this);
+
+            ImageTask task = new ImageTask(mImage.getSource(), mImage, null);
+            executeImageTask(task);
+            task.setPriority(ImageLoader.PRIORITY_VISIBLE);
+            updateProgress();
+        }
+    }
+
+    private class ImageTask implements ImageLoader.Callback {
 
         /**
          * The URL to load.
@@ -595,68 +921,108 @@ public final class HtmlView extends TextView {
         private final int mLayerId;
 
         /**
-         * {@code true} if the task has been canceled, {@code false} otherwise.
+         * The span the image is shown in, which says where it is on screen.
+         */
+        private final Object mAnchor;
+
+        /**
+         * The widest the image will be shown; anything wider is decoded
+         * smaller.
+         */
+        private final int mMaxWidth;
+
+        private boolean mStarted;
+
+        private ImageLoader.Request mRequest;
+
+        /**
+         * Smilies aren't loaded through the {@link ImageLoader}, so they're
+         * cancelled here instead.
          */
         private boolean mCancelled;
 
-        public ImageTask(String url, HtmlImageSpan placeholder) {
+        /**
+         * The loaded image, waiting for the next frame.
+         */
+        private Bitmap mResult;
+
+        /**
+         * Whether {@link #mResult} is held for this view by the
+         * {@link ImageLoader}; smilies aren't.
+         */
+        private boolean mHeld;
+
+        /**
+         * @param frame A placeholder already the size of the image, which
+         *            the image is put in rather than replacing the span, or
+         *            {@code null}
+         */
+        public ImageTask(String url, HtmlImageSpan placeholder, LayerDrawable frame) {
             mUrl = url;
             mSpan = placeholder;
-
-            // Not used:
-            mLayers = null;
-            mLayerId = -1;
+            mAnchor = placeholder;
+            mLayers = frame;
+            mLayerId = android.R.id.background;
+            mMaxWidth = getImageWidth();
         }
 
-        public ImageTask(String url, LayerDrawable layers, int layerId) {
+        public ImageTask(String url, LayerDrawable layers, int layerId, Object anchor) {
             mUrl = url;
             mLayers = layers;
             mLayerId = layerId;
+            mAnchor = anchor;
+
+            // The image only ever fills its layer
+            Rect bounds = layers.getBounds();
+            mMaxWidth = bounds.width() > 0 ? bounds.width() : getImageWidth();
 
             // Not used:
             mSpan = null;
         }
 
-        @Override
-        protected Bitmap doInBackground(Void... params) {
-            try {
-                URL url = new URL(mUrl);
-                InputStream in = url.openStream();
-                try {
-                    try {
-                        in = new BlockingFilterInputStream(in);
-                        return BitmapFactory.decodeStream(in);
-                    } catch (OutOfMemoryError e) {
-                        logResourceError("Insufficient memory to load image", mUrl, e);
-                        return null;
-                    } finally {
-                        in.close();
-                    }
-                } catch (NullPointerException e) {
-                    // See http://code.google.com/p/android/issues/detail?id=10337
-                    IOException ioe = new IOException();
-                    ioe.initCause(e);
-                    throw ioe;
-                }
-            } catch (IOException e) {
-                logResourceError("Unable to load image", mUrl, e);
-                return null;
+        /**
+         * Starts the load. It waits behind visible images until the view
+         * has been drawn and knows where this one is.
+         */
+        public void execute() {
+            mStarted = true;
+            if (SmilieCache.isSmilie(mUrl)) {
+                SmilieCache.getInstance(getContext()).load(mUrl, this);
+            } else {
+                mRequest = ImageLoader.getInstance(getContext()).load(mUrl, mMaxWidth, 
+                        ImageLoader.PRIORITY_OFFSCREEN, this);
             }
         }
 
-        @Override
-        protected void onCancelled() {
-            mCancelled = true;
+        public boolean isStarted() {
+            return mStarted;
         }
 
-        private void saveToImageCache(Bitmap result) {
-            if (result != null) {
-                sImageCache.put(mUrl, new SoftReference<Bitmap>(result));
+        public void setPriority(int priority) {
+            if (mRequest != null) {
+                mRequest.setPriority(priority);
+            }
+        }
+
+        /**
+         * Once cancelled the task is never called back.
+         */
+        public void cancel() {
+            mCancelled = true;
+            if (mRequest != null) {
+                mRequest.cancel();
             }
         }
 
         private Drawable getDrawable(Bitmap result) {
-            if (result != null) {
+            Drawable smilie = null;
+            if (result != null && SmilieCache.isSmilie(mUrl)) {
+                smilie = SmilieCache.getInstance(getContext()).get(getResources(), mUrl);
+            }
+
+            if (smilie != null) {
+                return smilie;
+            } else if (result != null) {
                 return createBitmapDrawable(result);
             } else {
                 return mDrawableMissingImage;
@@ -692,54 +1058,54 @@ public final class HtmlView extends TextView {
             }
         }
 
-        @Override
-        protected void onPostExecute(Bitmap result) {
-            saveToImageCache(result);
-            if (!mCancelled) {
-                replaceSpan(result);
-                replaceLayer(result);
-
-                mCompleteTaskCount += 1;
-                updateProgress();
+        public void onImageLoaded(String url, Bitmap result) {
+            if (mCancelled) {
+                return;
+            }
+            if (result == null) {
+                logResourceError("Unable to load image", mUrl);
             }
-        }
-    }
-
-    public static class SavedState extends BaseSavedState {
 
-        private String mHtml;
+            mTasks.remove(this);
 
-        @SuppressWarnings("hiding")
-        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
-            public SavedState createFromParcel(Parcel in) {
-                return new SavedState(in);
+            mResult = result;
+            mHeld = mRequest != null && result != null;
+            mFinishedTasks.add(this);
+            if (mFinishedTasks.size() == 1) {
+                postDelayed(mSwapImages, SWAP_DELAY);
             }
+        }
 
-            public SavedState[] newArray(int size) {
-                return new SavedState[size];
+        /**
+         * Puts the loaded image in place.
+         *
+         * @return Whether the span was replaced, which lays the text out
+         *         again
+         */
+        public boolean apply() {
+            if (mHeld) {
+                mShownBitmaps.add(mResult);
+                mHeld = false;
             }
-        };
 
-        public SavedState(Parcel in) {
-            super(in);
-            boolean hasHtml = in.readInt() != 0;
-            if (hasHtml) {
-                mHtml = in.readString();
+            if (mLayers != null && mResult != null) {
+                replaceLayer(mResult);
+                return false;
             }
-        }
 
-        public SavedState(Parcelable superState) {
-            super(superState);
+            replaceSpan(mResult);
+            return mSpan != null;
         }
 
-        @Override
-        public void writeToParcel(Parcel out, int flags) {
-            super.writeToParcel(out, flags);
-            boolean hasHtml = (mHtml != null);
-            out.writeInt(hasHtml ? 1 : 0);
-            if (hasHtml) {
-                out.writeString(mHtml);
+        /**
+         * Drops a loaded image that won't be put in place after all.
+         */
+        public void discard() {
+            if (mHeld) {
+                ImageCache.getInstance(getContext()).release(mResult);
+                mHeld = false;
             }
+            mResult = null;
         }
     }
 }
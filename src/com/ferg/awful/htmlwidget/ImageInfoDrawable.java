@@ -0,0 +1,119 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.htmlwidget;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * A box standing in for an image that hasn't been loaded, with a line or two
+ * of text about it in the middle.
+ */
+class ImageInfoDrawable extends Drawable {
+    private static final int HEIGHT_DIP    = 56;
+    private static final int TEXT_SIZE_DIP = 13;
+
+    private final Paint mFill = new Paint();
+    private final Paint mBorder = new Paint();
+    private final Paint mText = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private String mDetail;
+    private String mAction;
+
+    public ImageInfoDrawable(float density, int width) {
+        mFill.setColor(0x20808080);
+
+        mBorder.setColor(0x80808080);
+        mBorder.setStyle(Paint.Style.STROKE);
+
+        mText.setColor(0xFF808080);
+        mText.setTextSize(TEXT_SIZE_DIP * density);
+        mText.setTextAlign(Paint.Align.CENTER);
+
+        setBounds(0, 0, width, Math.round(HEIGHT_DIP * density));
+    }
+
+    /**
+     * @param detail What's known of the image, or null
+     * @param action What tapping it does
+     */
+    public void setText(String detail, String action) {
+        mDetail = detail;
+        mAction = action;
+        invalidateSelf();
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        canvas.drawRect(bounds, mFill);
+        canvas.drawRect(bounds.left, bounds.top, bounds.right - 1, bounds.bottom - 1, mBorder);
+
+        float lineHeight = mText.getFontSpacing();
+        int lines = (mDetail != null ? 1 : 0) + (mAction != null ? 1 : 0);
+        float baseline = bounds.exactCenterY() - lines * lineHeight / 2 - mText.ascent();
+
+        if (mDetail != null) {
+            canvas.drawText(mDetail, bounds.exactCenterX(), baseline, mText);
+            baseline += lineHeight;
+        }
+        if (mAction != null) {
+            canvas.drawText(mAction, bounds.exactCenterX(), baseline, mText);
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return getBounds().width();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return getBounds().height();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mText.setAlpha(alpha);
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        mText.setColorFilter(cf);
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -0,0 +1,212 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.image;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Bitmaps nobody is showing any more, kept by size so the next image of the
+ * same size can be decoded into one rather than allocating afresh.
+ *
+ * Decoding into an existing bitmap needs Honeycomb; the options for it are
+ * found by reflection, and on older platforms the pool simply stays empty.
+ * Before KitKat the platform only reuses a bitmap for a JPEG or PNG of
+ * exactly its size decoded at full scale.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    // BitmapFactory.Options.inBitmap and inMutable, from API 11
+    private static final Field sInBitmap;
+    private static final Field sInMutable;
+
+    static {
+        Field inBitmap = null;
+        Field inMutable = null;
+
+        if (Build.VERSION.SDK_INT >= 11) {
+            try {
+                inBitmap  = BitmapFactory.Options.class.getField("inBitmap");
+                inMutable = BitmapFactory.Options.class.getField("inMutable");
+            } catch (NoSuchFieldException e) {
+                Log.w(TAG, "Bitmap reuse unavailable: " + e.toString());
+                inBitmap = inMutable = null;
+            }
+        }
+
+        sInBitmap  = inBitmap;
+        sInMutable = inMutable;
+    }
+
+    private final long mMaxBytes;
+
+    // Free bitmaps by size and config, and all of them oldest first so the
+    // pool can be trimmed
+    private final HashMap<String, LinkedList<Bitmap>> mFree = new HashMap<String, LinkedList<Bitmap>>();
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+    private long mBytes;
+
+    private int mRequests;
+    private int mHits;
+
+    public BitmapPool(long aMaxBytes) {
+        mMaxBytes = aMaxBytes;
+    }
+
+    public static boolean isSupported() {
+        return sInBitmap != null;
+    }
+
+    /**
+     * Whether the platform can decode an image into a pooled bitmap.
+     */
+    public static boolean canReuse(int aSampleSize, String aMimeType) {
+        if (!isSupported()) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= 19) {
+            return true;
+        }
+
+        return aSampleSize == 1 && ("image/jpeg".equals(aMimeType) || "image/png".equals(aMimeType));
+    }
+
+    /**
+     * Sets up decoding options to decode into the given bitmap, or into a
+     * new one if it's null. Either way the result can be pooled later.
+     */
+    public static void prepare(BitmapFactory.Options aOptions, Bitmap aReuse) {
+        if (!isSupported()) {
+            return;
+        }
+
+        try {
+            sInMutable.setBoolean(aOptions, true);
+            sInBitmap.set(aOptions, aReuse);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, e.toString());
+        }
+    }
+
+    private static String getKey(int aWidth, int aHeight, Bitmap.Config aConfig) {
+        return aWidth + "x" + aHeight + ":" + aConfig;
+    }
+
+    private static long sizeOf(Bitmap aBitmap) {
+        return (long) aBitmap.getRowBytes() * aBitmap.getHeight();
+    }
+
+    /**
+     * Takes a free bitmap of the given size out of the pool.
+     *
+     * @return The bitmap, or null if there isn't one
+     */
+    public synchronized Bitmap get(int aWidth, int aHeight, Bitmap.Config aConfig) {
+        mRequests++;
+
+        LinkedList<Bitmap> free = mFree.get(getKey(aWidth, aHeight, aConfig));
+        if (free == null || free.isEmpty()) {
+            return null;
+        }
+
+        Bitmap result = free.removeLast();
+        mOrder.remove(result);
+        mBytes -= sizeOf(result);
+        mHits++;
+
+        return result;
+    }
+
+    /**
+     * Gives the pool a bitmap nothing will draw again. Bitmaps that can't be
+     * decoded into are left for the garbage collector.
+     */
+    public synchronized void put(Bitmap aBitmap) {
+        if (!isSupported() || aBitmap == null || aBitmap.isRecycled() || !aBitmap.isMutable()) {
+            return;
+        }
+
+        long bytes = sizeOf(aBitmap);
+        if (bytes > mMaxBytes) {
+            return;
+        }
+
+        String key = getKey(aBitmap.getWidth(), aBitmap.getHeight(), aBitmap.getConfig());
+        LinkedList<Bitmap> free = mFree.get(key);
+        if (free == null) {
+            free = new LinkedList<Bitmap>();
+            mFree.put(key, free);
+        }
+
+        free.add(aBitmap);
+        mOrder.add(aBitmap);
+        mBytes += bytes;
+
+        while (mBytes > mMaxBytes) {
+            Bitmap eldest = mOrder.removeFirst();
+            mFree.get(getKey(eldest.getWidth(), eldest.getHeight(), eldest.getConfig())).remove(eldest);
+            mBytes -= sizeOf(eldest);
+        }
+    }
+
+    public synchronized void clear() {
+        mFree.clear();
+        mOrder.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Share of decodes that found a bitmap to reuse, from 0 to 1.
+     */
+    public synchronized float getHitRate() {
+        return mRequests == 0 ? 0 : (float) mHits / mRequests;
+    }
+
+    /**
+     * Bytes held in free bitmaps.
+     */
+    public synchronized long getRetainedBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getRequests() {
+        return mRequests;
+    }
+}
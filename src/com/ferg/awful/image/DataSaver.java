@@ -0,0 +1,76 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.image;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.ferg.awful.network.NetworkUtils;
+
+/**
+ * Whether post images wait for a tap, from the settings and, in the
+ * automatic mode, the connection. Avatars and smilies always load.
+ */
+public class DataSaver {
+    static final String PREF_MODE = "image_loading";
+    static final String PREF_AUTOLOAD_SIZE = "image_autoload_size";
+
+    static final String MODE_ALWAYS = "always";
+    static final String MODE_AUTO   = "auto";
+    static final String MODE_TAP    = "tap";
+
+    static final int DEFAULT_AUTOLOAD_SIZE = 50;
+
+    /**
+     * Whether post images should be held back until they're tapped.
+     */
+    public static boolean isOn(Context aContext) {
+        String mode = getPrefs(aContext).getString(PREF_MODE, MODE_AUTO);
+
+        if (MODE_TAP.equals(mode)) {
+            return true;
+        } else if (MODE_AUTO.equals(mode)) {
+            return !NetworkUtils.isUnmetered(aContext);
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the size in bytes up to which images load without a tap anyway.
+     */
+    public static long getAutoLoadBytes(Context aContext) {
+        return getPrefs(aContext).getInt(PREF_AUTOLOAD_SIZE, DEFAULT_AUTOLOAD_SIZE) * 1024L;
+    }
+
+    private static SharedPreferences getPrefs(Context aContext) {
+        return PreferenceManager.getDefaultSharedPreferences(aContext);
+    }
+}
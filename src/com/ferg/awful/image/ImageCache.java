@@ -0,0 +1,756 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.image;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * The one image cache for the whole app: post images, avatars and
+ * thumbnails all come through here.
+ *
+ * Decoded bitmaps are kept in memory up to a byte budget, least recently
+ * used first out, in front of a disk cache with a budget of its own. Files
+ * on disk are named by a hash of their URL, so finding one never needs an
+ * index. Everything here is safe to call from any thread, though only
+ * {@link #get} and {@link #acquire(String)} should be called from the UI
+ * thread.
+ *
+ * Bitmaps handed out by {@link #acquire(String)} are counted until they're
+ * released, and once one is out of the memory cache and nobody is showing
+ * it, it goes to a {@link BitmapPool} for the next image of its size to be
+ * decoded into. Bitmaps from {@link #get} and {@link #load} are never
+ * reused, since there's no knowing when their callers are done with them.
+ */
+public class ImageCache {
+    private static final String TAG = "ImageCache";
+
+    private static final String DIRECTORY = "images";
+
+    // Share of the app's heap the decoded bitmaps may use
+    private static final int MEMORY_SHARE = 8;
+
+    private static final long DISK_BUDGET = 16 * 1024 * 1024;
+
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT    = 20 * 1000;
+
+    // Log the stats once per this many lookups
+    private static final int REPORT_INTERVAL = 200;
+
+    // Who a bitmap is being handed to
+    private static final int HANDOFF_NONE    = 0;
+    private static final int HANDOFF_COUNTED = 1;
+    private static final int HANDOFF_ESCAPED = 2;
+
+    private static ImageCache sInstance;
+
+    private final File mDirectory;
+    private final long mMemoryBudget;
+
+    // Access ordered, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Bitmap> mMemory = new LinkedHashMap<String, Bitmap>(64, 0.75f, true);
+    private long mMemoryBytes;
+
+    // The size each recent image was last decoded at, kept after the bitmap
+    // itself is gone so space can be kept for it while it loads again
+    private static final int MAX_SIZES = 1024;
+    private final LinkedHashMap<String, int[]> mSizes = new LinkedHashMap<String, int[]>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> aEldest) {
+            return size() > MAX_SIZES;
+        }
+    };
+
+    // File name to size, also access ordered; built from the directory the
+    // first time the disk is touched
+    private final Object mDiskLock = new Object();
+    private LinkedHashMap<String, Long> mDisk;
+    private long mDiskBytes;
+
+    // Guarded by mMemory, like the memory cache. All weak, so a bitmap
+    // nobody releases is still collected
+    private final WeakHashMap<Bitmap, int[]> mHeld = new WeakHashMap<Bitmap, int[]>();
+    private final WeakHashMap<Bitmap, Boolean> mEvicted = new WeakHashMap<Bitmap, Boolean>();
+    private final WeakHashMap<Bitmap, Boolean> mEscaped = new WeakHashMap<Bitmap, Boolean>();
+    private final BitmapPool mPool;
+
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+    private int mPrefetches;
+    private int mMemoryEvictions;
+    private int mDiskEvictions;
+
+    public static synchronized ImageCache getInstance(Context aContext) {
+        if (sInstance == null) {
+            sInstance = new ImageCache(aContext.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private ImageCache(Context aContext) {
+        mDirectory = new File(aContext.getCacheDir(), DIRECTORY);
+        mDirectory.mkdirs();
+
+        // Connections are only safe to reuse from Froyo on
+        if (Build.VERSION.SDK_INT < 8) {
+            System.setProperty("http.keepAlive", "false");
+        }
+
+        ActivityManager activities = (ActivityManager) aContext.getSystemService(Context.ACTIVITY_SERVICE);
+        mMemoryBudget = activities.getMemoryClass() * 1024L * 1024L / MEMORY_SHARE;
+        mPool = new BitmapPool(mMemoryBudget / 4);
+    }
+
+    /**
+     * Returns the image if it's already decoded in memory. Cheap enough for
+     * the UI thread.
+     */
+    public Bitmap get(String aUrl) {
+        return get(aUrl, HANDOFF_ESCAPED);
+    }
+
+    /**
+     * Like {@link #get}, but the bitmap is held for the caller, who hands it
+     * back with {@link #release} once it's no longer shown.
+     */
+    public Bitmap acquire(String aUrl) {
+        return get(aUrl, HANDOFF_COUNTED);
+    }
+
+    private Bitmap get(String aUrl, int aHandoff) {
+        if (aUrl == null) {
+            return null;
+        }
+
+        Bitmap result;
+        boolean report = false;
+
+        synchronized (mMemory) {
+            result = mMemory.get(aUrl);
+            if (result != null) {
+                mMemoryHits++;
+                report = isReportDue();
+                handOff(result, aHandoff);
+            }
+        }
+
+        if (report) {
+            Log.i(TAG, getStats());
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the image from memory, the disk or the network, in that order,
+     * keeping it in both caches. Blocks, so never call it from the UI thread.
+     *
+     * @return The image, or null if it couldn't be fetched or decoded
+     */
+    public Bitmap load(String aUrl) {
+        return load(aUrl, 0);
+    }
+
+    /**
+     * Like {@link #load(String)}, but images much wider than the given width
+     * are decoded at a fraction of their size. Only the smaller decoding is
+     * kept in memory; the original stays on disk.
+     *
+     * @param aMaxWidth The widest the image will be shown, in pixels, or 0
+     *            for no limit
+     */
+    public Bitmap load(String aUrl, int aMaxWidth) {
+        return load(aUrl, aMaxWidth, HANDOFF_ESCAPED);
+    }
+
+    /**
+     * Like {@link #load(String, int)}, but the bitmap is held for the
+     * caller as with {@link #acquire(String)}.
+     */
+    Bitmap acquire(String aUrl, int aMaxWidth) {
+        return load(aUrl, aMaxWidth, HANDOFF_COUNTED);
+    }
+
+    private Bitmap load(String aUrl, int aMaxWidth, int aHandoff) {
+        Bitmap result = get(aUrl, aHandoff);
+        if (result != null) {
+            return result;
+        }
+
+        File file = fetch(aUrl);
+        if (file == null) {
+            return null;
+        }
+
+        result = decode(file, aMaxWidth, Long.MAX_VALUE);
+        if (result != null) {
+            put(aUrl, result, aHandoff);
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets an image ready before it's needed without pushing anything else
+     * out of memory: it's fetched to disk, and only decoded if it fits in
+     * what's left of the memory budget. Blocks like {@link #load}.
+     */
+    public void prefetch(String aUrl, int aMaxWidth) {
+        long room;
+        synchronized (mMemory) {
+            if (mMemory.containsKey(aUrl)) {
+                return;
+            }
+            mPrefetches++;
+            room = mMemoryBudget - mMemoryBytes;
+        }
+
+        File file = fetch(aUrl);
+        if (file == null || room <= 0) {
+            return;
+        }
+
+        Bitmap result = decode(file, aMaxWidth, room);
+        if (result != null) {
+            put(aUrl, result, HANDOFF_NONE);
+        }
+    }
+
+    /**
+     * Makes sure the image is on disk, downloading it if need be.
+     *
+     * @return The file, or null if it couldn't be fetched
+     */
+    private File fetch(String aUrl) {
+        File file = getFile(aUrl);
+        boolean cached = touchFile(file);
+
+        if (!cached) {
+            try {
+                download(aUrl, file);
+            } catch (IOException e) {
+                Log.i(TAG, "Couldn't fetch image: " + e.toString());
+                return null;
+            }
+        }
+
+        boolean report;
+        synchronized (mMemory) {
+            if (cached) {
+                mDiskHits++;
+            } else {
+                mMisses++;
+            }
+            report = isReportDue();
+        }
+
+        if (report) {
+            Log.i(TAG, getStats());
+        }
+
+        return file;
+    }
+
+    /**
+     * Keeps an image decoded elsewhere in the memory cache.
+     */
+    public void put(String aUrl, Bitmap aBitmap) {
+        put(aUrl, aBitmap, HANDOFF_ESCAPED);
+    }
+
+    private void put(String aUrl, Bitmap aBitmap, int aHandoff) {
+        if (aUrl == null || aBitmap == null) {
+            return;
+        }
+
+        synchronized (mSizes) {
+            mSizes.put(aUrl, new int[] { aBitmap.getWidth(), aBitmap.getHeight() });
+        }
+
+        long bytes = sizeOf(aBitmap);
+
+        synchronized (mMemory) {
+            handOff(aBitmap, aHandoff);
+
+            // Something this big would just push everything else out
+            if (bytes > mMemoryBudget / 4) {
+                discard(aBitmap);
+                return;
+            }
+
+            Bitmap previous = mMemory.put(aUrl, aBitmap);
+            if (previous != null) {
+                mMemoryBytes -= sizeOf(previous);
+                discard(previous);
+            }
+            mMemoryBytes += bytes;
+
+            Iterator<Map.Entry<String, Bitmap>> eldest = mMemory.entrySet().iterator();
+            while (mMemoryBytes > mMemoryBudget && eldest.hasNext()) {
+                Map.Entry<String, Bitmap> entry = eldest.next();
+                eldest.remove();
+
+                mMemoryBytes -= sizeOf(entry.getValue());
+                mMemoryEvictions++;
+                discard(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Records who a bitmap is going to. Called with mMemory held.
+     */
+    private void handOff(Bitmap aBitmap, int aHandoff) {
+        if (aHandoff == HANDOFF_ESCAPED) {
+            mEscaped.put(aBitmap, Boolean.TRUE);
+        } else if (aHandoff == HANDOFF_COUNTED) {
+            int[] held = mHeld.get(aBitmap);
+            if (held == null) {
+                mHeld.put(aBitmap, new int[] { 1 });
+            } else {
+                held[0]++;
+            }
+        }
+    }
+
+    /**
+     * Deals with a bitmap leaving the memory cache: it's pooled if nobody is
+     * showing it, or once they stop. Called with mMemory held.
+     */
+    private void discard(Bitmap aBitmap) {
+        if (mEscaped.containsKey(aBitmap)) {
+            return;
+        }
+
+        if (mHeld.containsKey(aBitmap)) {
+            mEvicted.put(aBitmap, Boolean.TRUE);
+        } else {
+            mPool.put(aBitmap);
+        }
+    }
+
+    /**
+     * Holds a bitmap from {@link #acquire} for more callers.
+     */
+    void retain(Bitmap aBitmap, int aCount) {
+        if (aBitmap == null) {
+            return;
+        }
+
+        synchronized (mMemory) {
+            int[] held = mHeld.get(aBitmap);
+            if (held == null) {
+                mHeld.put(aBitmap, new int[] { aCount });
+            } else {
+                held[0] += aCount;
+            }
+        }
+    }
+
+    /**
+     * Hands back a bitmap from {@link #acquire} that's no longer shown.
+     */
+    public void release(Bitmap aBitmap) {
+        if (aBitmap == null) {
+            return;
+        }
+
+        synchronized (mMemory) {
+            int[] held = mHeld.get(aBitmap);
+            if (held == null || --held[0] > 0) {
+                return;
+            }
+
+            mHeld.remove(aBitmap);
+            if (mEvicted.remove(aBitmap) != null) {
+                mPool.put(aBitmap);
+            }
+        }
+    }
+
+    /**
+     * Returns the width and height the image was last decoded at, if it's
+     * been seen recently.
+     *
+     * @return {width, height}, or null
+     */
+    public int[] getSize(String aUrl) {
+        if (aUrl == null) {
+            return null;
+        }
+
+        synchronized (mSizes) {
+            return mSizes.get(aUrl);
+        }
+    }
+
+    /**
+     * Drops every decoded image, for when the system is short of memory. The
+     * disk cache is left alone.
+     */
+    public void clearMemory() {
+        synchronized (mMemory) {
+            for (Bitmap bitmap : mMemory.values()) {
+                discard(bitmap);
+            }
+
+            mMemoryEvictions += mMemory.size();
+            mMemory.clear();
+            mMemoryBytes = 0;
+        }
+
+        mPool.clear();
+    }
+
+    /**
+     * Returns where the image for a URL is or would be kept on disk.
+     */
+    public File getFile(String aUrl) {
+        return new File(mDirectory, hash(aUrl));
+    }
+
+    /**
+     * Decodes an image no bigger than it needs to be: the header is read
+     * first, then the image is subsampled by the largest power of two that
+     * keeps it at least as wide as it will be shown and small enough for the
+     * memory cache. Images without transparency are decoded at 16 bits.
+     *
+     * @param aMaxBytes Images that would still be bigger than this aren't
+     *            decoded at all
+     */
+    protected Bitmap decode(File aFile, int aMaxWidth, long aMaxBytes) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(aFile.getPath(), options);
+
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            Log.i(TAG, "Not an image: " + aFile.getName());
+            return null;
+        }
+
+        // 16 bit pixels halve the cost of the JPEG photos that are the
+        // usual problem, and they've no alpha to lose
+        boolean opaque = "image/jpeg".equals(options.outMimeType);
+        int bytesPerPixel = opaque ? 2 : 4;
+
+        int sampleSize = 1;
+        if (aMaxWidth > 0) {
+            while (width / (sampleSize * 2) >= aMaxWidth) {
+                sampleSize *= 2;
+            }
+        }
+        while ((long) (width / sampleSize) * (height / sampleSize) * bytesPerPixel > mMemoryBudget / 4) {
+            sampleSize *= 2;
+        }
+        if ((long) (width / sampleSize) * (height / sampleSize) * bytesPerPixel > aMaxBytes) {
+            return null;
+        }
+
+        Bitmap.Config config = opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        Bitmap reuse = null;
+        if (BitmapPool.canReuse(sampleSize, options.outMimeType)) {
+            reuse = mPool.get(width / sampleSize, height / sampleSize, config);
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        options.inDither = opaque;
+        BitmapPool.prepare(options, reuse);
+
+        if (sampleSize > 1) {
+            Log.d(TAG, "Decoding " + width + "x" + height + " image at 1/" + sampleSize);
+        }
+
+        try {
+            Bitmap result = null;
+            try {
+                result = BitmapFactory.decodeFile(aFile.getPath(), options);
+            } catch (IllegalArgumentException e) {
+                // The platform wouldn't decode into the pooled bitmap
+            }
+
+            if (result == null && reuse != null) {
+                BitmapPool.prepare(options, null);
+                result = BitmapFactory.decodeFile(aFile.getPath(), options);
+            }
+
+            return result;
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Insufficient memory to decode " + aFile.getName());
+            clearMemory();
+            return null;
+        }
+    }
+
+    private void download(String aUrl, File aFile) throws IOException {
+        download(aUrl, aFile, new File(mDirectory, aFile.getName() + ".part-" + Thread.currentThread().getId()));
+
+        addFile(aFile);
+    }
+
+    /**
+     * Fetches a URL into a file by way of a temporary one, so nobody ever
+     * sees half an image.
+     */
+    static void download(String aUrl, File aFile, File aPartial) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(aUrl).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+
+            InputStream in = connection.getInputStream();
+            OutputStream out = new FileOutputStream(aPartial);
+            try {
+                byte[] buffer = new byte[8192];
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, length);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+        } catch (IOException e) {
+            // Only a connection that was read to the end goes back in the
+            // pool for the next image from the same host
+            connection.disconnect();
+            aPartial.delete();
+            throw e;
+        }
+
+        if (!aPartial.renameTo(aFile)) {
+            aPartial.delete();
+            throw new IOException("Couldn't store " + aFile.getName());
+        }
+    }
+
+    /**
+     * Marks a file as just used.
+     *
+     * @return Whether it's in the disk cache
+     */
+    private boolean touchFile(File aFile) {
+        synchronized (mDiskLock) {
+            loadDiskIndex();
+
+            if (mDisk.get(aFile.getName()) == null) {
+                return false;
+            }
+
+            if (!aFile.exists()) {
+                mDiskBytes -= mDisk.remove(aFile.getName());
+                return false;
+            }
+
+            aFile.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+    }
+
+    private void addFile(File aFile) {
+        synchronized (mDiskLock) {
+            loadDiskIndex();
+
+            Long previous = mDisk.put(aFile.getName(), aFile.length());
+            if (previous != null) {
+                mDiskBytes -= previous;
+            }
+            mDiskBytes += aFile.length();
+
+            Iterator<Map.Entry<String, Long>> eldest = mDisk.entrySet().iterator();
+            while (mDiskBytes > DISK_BUDGET && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(aFile.getName())) {
+                    continue;
+                }
+                eldest.remove();
+
+                new File(mDirectory, entry.getKey()).delete();
+                mDiskBytes -= entry.getValue();
+                mDiskEvictions++;
+            }
+        }
+    }
+
+    private void loadDiskIndex() {
+        if (mDisk != null) {
+            return;
+        }
+
+        mDisk = new LinkedHashMap<String, Long>(256, 0.75f, true);
+        mDiskBytes = 0;
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Oldest first, the same order they'd have been used in
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File aLeft, File aRight) {
+                long left = aLeft.lastModified();
+                long right = aRight.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            // Left over from a download that never finished
+            if (file.getName().indexOf(".part-") != -1) {
+                file.delete();
+                continue;
+            }
+
+            mDisk.put(file.getName(), file.length());
+            mDiskBytes += file.length();
+        }
+    }
+
+    private static long sizeOf(Bitmap aBitmap) {
+        return (long) aBitmap.getRowBytes() * aBitmap.getHeight();
+    }
+
+    static String hash(String aUrl) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(aUrl.getBytes("UTF-8"));
+
+            StringBuilder result = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                result.append(Character.forDigit((b >> 4) & 0xf, 16));
+                result.append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Called with mMemory held
+    private boolean isReportDue() {
+        return (mMemoryHits + mDiskHits + mMisses) % REPORT_INTERVAL == 0;
+    }
+
+    public int getMemoryHits() {
+        synchronized (mMemory) {
+            return mMemoryHits;
+        }
+    }
+
+    public int getDiskHits() {
+        synchronized (mMemory) {
+            return mDiskHits;
+        }
+    }
+
+    /**
+     * Number of images that had to be fetched from the network.
+     */
+    public int getMisses() {
+        synchronized (mMemory) {
+            return mMisses;
+        }
+    }
+
+    /**
+     * Number of images asked for ahead of time.
+     */
+    public int getPrefetches() {
+        synchronized (mMemory) {
+            return mPrefetches;
+        }
+    }
+
+    public int getMemoryEvictions() {
+        synchronized (mMemory) {
+            return mMemoryEvictions;
+        }
+    }
+
+    public BitmapPool getPool() {
+        return mPool;
+    }
+
+    public int getDiskEvictions() {
+        synchronized (mDiskLock) {
+            return mDiskEvictions;
+        }
+    }
+
+    public String getStats() {
+        long diskBytes;
+        int diskEvictions;
+        synchronized (mDiskLock) {
+            diskBytes = mDiskBytes;
+            diskEvictions = mDiskEvictions;
+        }
+
+        synchronized (mMemory) {
+            return "memory " + mMemoryBytes + "/" + mMemoryBudget + " bytes, disk " + 
+                diskBytes + "/" + DISK_BUDGET + " bytes; " + mMemoryHits + " memory hits, " + 
+                mDiskHits + " disk hits, " + mMisses + " misses, " + mPrefetches + " prefetched, " + 
+                mMemoryEvictions + " evicted from memory, " + diskEvictions + " from disk; pool " + 
+                mPool.getRetainedBytes() + " bytes, " + Math.round(mPool.getHitRate() * 100) + "% hits";
+        }
+    }
+}
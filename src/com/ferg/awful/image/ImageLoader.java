@@ -0,0 +1,374 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.image;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Loads images through the {@link ImageCache} on a small pool of workers,
+ * so a page full of images can't swamp the network or the thread pool.
+ *
+ * Requests for the same URL share one load. The most urgent waiting load
+ * goes first, and callers raise or lower a request's priority as its image
+ * moves on or off the screen. Only a couple of loads run against any one
+ * host at once, so one slow image host can't hold up everything else.
+ * Cancelled requests are dropped, and a load nobody is waiting for any
+ * more never starts. Prefetches wait behind everything else and don't push
+ * other images out of memory.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+
+    public static final int PRIORITY_PREFETCH  = -10;
+    public static final int PRIORITY_OFFSCREEN = 0;
+    public static final int PRIORITY_VISIBLE   = 10;
+
+    private static final int WORKERS = 3;
+    private static final int MAX_PER_HOST = 2;
+
+    private static ImageLoader sInstance;
+
+    /**
+     * Told about a finished load on the UI thread.
+     */
+    public interface Callback {
+        /**
+         * @param aBitmap The image, or null if it couldn't be loaded. It's
+         *            held for the callback, which should hand it back with
+         *            {@link ImageCache#release} once it's no longer shown
+         *            so it can be reused.
+         */
+        void onImageLoaded(String aUrl, Bitmap aBitmap);
+    }
+
+    private final ImageCache mCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Every load waiting or running, by URL
+    private final HashMap<String, Job> mJobs = new HashMap<String, Job>();
+    private final ArrayList<Job> mWaiting = new ArrayList<Job>();
+    private final HashMap<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+
+    private long mSequence;
+    private int mShared;
+
+    public static synchronized ImageLoader getInstance(Context aContext) {
+        if (sInstance == null) {
+            sInstance = new ImageLoader(ImageCache.getInstance(aContext));
+        }
+
+        return sInstance;
+    }
+
+    private ImageLoader(ImageCache aCache) {
+        mCache = aCache;
+
+        for (int i = 0; i < WORKERS; i++) {
+            Thread worker = new Worker(i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a load. The callback is never called if the request is
+     * cancelled first.
+     *
+     * @param aMaxWidth Passed on to {@link ImageCache#load(String, int)}
+     */
+    public synchronized Request load(String aUrl, int aMaxWidth, int aPriority, Callback aCallback) {
+        Job job = mJobs.get(aUrl);
+
+        if (job == null) {
+            job = new Job(aUrl, aMaxWidth, mSequence++);
+            mJobs.put(aUrl, job);
+            mWaiting.add(job);
+        } else {
+            mShared++;
+            job.mMaxWidth = Math.max(job.mMaxWidth, aMaxWidth);
+        }
+
+        Request request = new Request(job, aPriority, aCallback);
+        job.mRequests.add(request);
+        job.updatePriority();
+
+        notifyAll();
+
+        return request;
+    }
+
+    /**
+     * Queues an image nobody is showing yet, behind every other load. See
+     * {@link ImageCache#prefetch}.
+     */
+    public Request prefetch(String aUrl, int aMaxWidth) {
+        return load(aUrl, aMaxWidth, PRIORITY_PREFETCH, null);
+    }
+
+    /**
+     * One caller's interest in a load.
+     */
+    public class Request {
+        private final Job mJob;
+        private final Callback mCallback;
+        private int mPriority;
+        private boolean mCancelled;
+
+        private Request(Job aJob, int aPriority, Callback aCallback) {
+            mJob      = aJob;
+            mPriority = aPriority;
+            mCallback = aCallback;
+        }
+
+        public String getUrl() {
+            return mJob.mUrl;
+        }
+
+        public void setPriority(int aPriority) {
+            synchronized (ImageLoader.this) {
+                if (mPriority != aPriority) {
+                    mPriority = aPriority;
+                    mJob.updatePriority();
+                }
+            }
+        }
+
+        public void cancel() {
+            synchronized (ImageLoader.this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+
+                mJob.mRequests.remove(this);
+                if (mJob.mRequests.isEmpty() && !mJob.mRunning) {
+                    mWaiting.remove(mJob);
+                    mJobs.remove(mJob.mUrl);
+                } else {
+                    mJob.updatePriority();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (ImageLoader.this) {
+                return mCancelled;
+            }
+        }
+    }
+
+    private class Job {
+        final String mUrl;
+        final String mHost;
+        final long mSequence;
+        int mMaxWidth;
+        int mPriority;
+        boolean mRunning;
+        final ArrayList<Request> mRequests = new ArrayList<Request>(1);
+
+        Job(String aUrl, int aMaxWidth, long aSequence) {
+            mUrl      = aUrl;
+            mHost     = getHost(aUrl);
+            mMaxWidth = aMaxWidth;
+            mSequence = aSequence;
+        }
+
+        // Called with the loader locked
+        boolean isPrefetch() {
+            for (Request request : mRequests) {
+                if (request.mCallback != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Called with the loader locked
+        void updatePriority() {
+            int priority = Integer.MIN_VALUE;
+            for (Request request : mRequests) {
+                priority = Math.max(priority, request.mPriority);
+            }
+            mPriority = priority;
+        }
+    }
+
+    private static String getHost(String aUrl) {
+        try {
+            String host = new URI(aUrl).getHost();
+            return host == null ? "" : host.toLowerCase();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    /**
+     * Picks the most urgent waiting load whose host has room, oldest first
+     * among equals. Called with the loader locked.
+     */
+    private Job nextJob() {
+        Job best = null;
+
+        for (Job job : mWaiting) {
+            Integer running = mRunningPerHost.get(job.mHost);
+            if (running != null && running >= MAX_PER_HOST) {
+                continue;
+            }
+
+            if (best == null || job.mPriority > best.mPriority ||
+                    (job.mPriority == best.mPriority && job.mSequence < best.mSequence)) {
+                best = job;
+            }
+        }
+
+        return best;
+    }
+
+    private void deliver(final Job aJob, final Bitmap aBitmap) {
+        final ArrayList<Request> requests;
+        int callbacks = 0;
+
+        synchronized (this) {
+            Integer running = mRunningPerHost.get(aJob.mHost);
+            if (running == null || running <= 1) {
+                mRunningPerHost.remove(aJob.mHost);
+            } else {
+                mRunningPerHost.put(aJob.mHost, running - 1);
+            }
+
+            mJobs.remove(aJob.mUrl);
+            requests = new ArrayList<Request>(aJob.mRequests);
+            for (Request request : requests) {
+                if (request.mCallback != null) {
+                    callbacks++;
+                }
+            }
+
+            // The host has room again
+            notifyAll();
+        }
+
+        // The load held the bitmap once; hold it once for each callback
+        if (callbacks == 0) {
+            mCache.release(aBitmap);
+        } else if (callbacks > 1) {
+            mCache.retain(aBitmap, callbacks - 1);
+        }
+
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (Request request : requests) {
+                    if (request.mCallback == null) {
+                        continue;
+                    }
+
+                    if (request.isCancelled()) {
+                        mCache.release(aBitmap);
+                    } else {
+                        request.mCallback.onImageLoaded(aJob.mUrl, aBitmap);
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    /**
+     * Number of requests that were served by a load already under way.
+     */
+    public synchronized int getSharedCount() {
+        return mShared;
+    }
+
+    private class Worker extends Thread {
+        Worker(int aIndex) {
+            super(TAG + "-" + aIndex);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                Job job;
+                boolean prefetch;
+
+                synchronized (ImageLoader.this) {
+                    try {
+                        while ((job = nextJob()) == null) {
+                            ImageLoader.this.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+
+                    mWaiting.remove(job);
+                    job.mRunning = true;
+
+                    Integer running = mRunningPerHost.get(job.mHost);
+                    mRunningPerHost.put(job.mHost, running == null ? 1 : running + 1);
+
+                    prefetch = job.isPrefetch();
+                }
+
+                Bitmap result = null;
+                try {
+                    if (prefetch) {
+                        mCache.prefetch(job.mUrl, job.mMaxWidth);
+
+                        // Someone may have asked to see it in the meantime
+                        synchronized (ImageLoader.this) {
+                            prefetch = job.isPrefetch();
+                        }
+                    }
+                    if (!prefetch) {
+                        result = mCache.acquire(job.mUrl, job.mMaxWidth);
+                    }
+                } catch (RuntimeException e) {
+                    // A bad URL shouldn't take the worker with it
+                    Log.w(TAG, "Failed to load image: " + e.toString());
+                }
+
+                deliver(job, result);
+            }
+        }
+    }
+}
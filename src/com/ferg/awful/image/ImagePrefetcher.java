@@ -0,0 +1,90 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.image;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.ferg.awful.thread.AwfulPost;
+
+/**
+ * Warms the image cache with a page's avatars and inline images before the
+ * page is shown. Everything is queued behind the images already on screen,
+ * and only decoded into memory while there's room left in the budget.
+ */
+public class ImagePrefetcher {
+    private static final String TAG = "ImagePrefetcher";
+
+    private static final Pattern IMG_SRC = 
+        Pattern.compile("<img[^>]*\\ssrc=[\"']([^\"']+)[\"']", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Queues the images in the given posts. Smilies are left to the
+     * {@link SmilieCache}, which has them on disk already, and post images
+     * to the {@link DataSaver} when it's holding them back.
+     */
+    public static void prefetch(Context aContext, List<AwfulPost> aPosts) {
+        LinkedHashSet<String> urls = new LinkedHashSet<String>();
+        boolean images = !DataSaver.isOn(aContext);
+
+        for (AwfulPost post : aPosts) {
+            add(urls, post.getAvatar());
+
+            String content = post.getContent();
+            if (images && content != null) {
+                Matcher matcher = IMG_SRC.matcher(content);
+                while (matcher.find()) {
+                    add(urls, matcher.group(1));
+                }
+            }
+        }
+
+        ImageLoader loader = ImageLoader.getInstance(aContext);
+        int width = aContext.getResources().getDisplayMetrics().widthPixels;
+
+        for (String url : urls) {
+            loader.prefetch(url, width);
+        }
+
+        Log.i(TAG, "Prefetching " + urls.size() + " images");
+    }
+
+    private static void add(LinkedHashSet<String> aUrls, String aUrl) {
+        if (aUrl == null || !aUrl.startsWith("http") || SmilieCache.isSmilie(aUrl)) {
+            return;
+        }
+
+        aUrls.add(aUrl.replace("&amp;", "&"));
+    }
+}
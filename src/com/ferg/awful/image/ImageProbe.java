@@ -0,0 +1,241 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Finds out how big an image is without downloading it: only its first few
+ * kilobytes are asked for, which is enough for the header with the width
+ * and height, and the reply says how long the whole file is.
+ *
+ * Probes run one at a time on a worker of their own, so they never hold up
+ * images that are actually being loaded. Results are kept in memory.
+ */
+public class ImageProbe {
+    private static final String TAG = "ImageProbe";
+
+    // Enough for the header of nearly any JPEG, PNG or GIF
+    private static final int PROBE_BYTES = 8 * 1024;
+
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT    = 20 * 1000;
+
+    private static final int MAX_RESULTS = 512;
+
+    private static ImageProbe sInstance;
+
+    /**
+     * What's known of an image. Anything that couldn't be found out is -1.
+     */
+    public static class Result {
+        public final int width;
+        public final int height;
+        public final long bytes;
+
+        Result(int aWidth, int aHeight, long aBytes) {
+            width  = aWidth > 0 ? aWidth : -1;
+            height = aHeight > 0 ? aHeight : -1;
+            bytes  = aBytes >= 0 ? aBytes : -1;
+        }
+    }
+
+    /**
+     * Told about a finished probe on the UI thread.
+     */
+    public interface Callback {
+        void onProbed(String aUrl, Result aResult);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final LinkedHashMap<String, Result> mResults = new LinkedHashMap<String, Result>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> aEldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+
+    // Callers waiting on each URL; one probe serves them all
+    private final HashMap<String, ArrayList<Callback>> mWaiting = new HashMap<String, ArrayList<Callback>>();
+    private final LinkedBlockingQueue<String> mQueue = new LinkedBlockingQueue<String>();
+
+    public static synchronized ImageProbe getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImageProbe();
+        }
+
+        return sInstance;
+    }
+
+    private ImageProbe() {
+        Thread worker = new Worker();
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns what's known of the image, if it's been probed before.
+     */
+    public Result get(String aUrl) {
+        synchronized (mResults) {
+            return mResults.get(aUrl);
+        }
+    }
+
+    /**
+     * Queues a probe. Must be called from the UI thread.
+     */
+    public void probe(String aUrl, Callback aCallback) {
+        ArrayList<Callback> callbacks = mWaiting.get(aUrl);
+
+        if (callbacks == null) {
+            callbacks = new ArrayList<Callback>(1);
+            mWaiting.put(aUrl, callbacks);
+            mQueue.offer(aUrl);
+        }
+
+        callbacks.add(aCallback);
+    }
+
+    /**
+     * Asks for the start of the file. A server that ignores the range sends
+     * the whole thing, so the connection is dropped once the start is in.
+     */
+    private static Result fetch(String aUrl) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(aUrl).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+
+        try {
+            int status = connection.getResponseCode();
+            long bytes = -1;
+
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                // bytes 0-8191/123456
+                String range = connection.getHeaderField("Content-Range");
+                int slash = range == null ? -1 : range.lastIndexOf('/');
+                if (slash != -1) {
+                    try {
+                        bytes = Long.parseLong(range.substring(slash + 1).trim());
+                    } catch (NumberFormatException e) {
+                        // An unknown length is sent as "*"
+                    }
+                }
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                bytes = connection.getContentLength();
+            } else {
+                throw new IOException("HTTP " + status);
+            }
+
+            byte[] head = new byte[PROBE_BYTES];
+            int length = 0;
+            InputStream in = connection.getInputStream();
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(head, 0, length, options);
+
+            return new Result(options.outWidth, options.outHeight, bytes);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void deliver(final String aUrl, final Result aResult) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                ArrayList<Callback> callbacks = mWaiting.remove(aUrl);
+                if (callbacks == null) {
+                    return;
+                }
+
+                for (Callback callback : callbacks) {
+                    callback.onProbed(aUrl, aResult);
+                }
+            }
+        });
+    }
+
+    private class Worker extends Thread {
+        Worker() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                String url;
+                try {
+                    url = mQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                // Failures aren't kept, so the next look tries again
+                Result result = new Result(-1, -1, -1);
+                try {
+                    result = fetch(url);
+
+                    synchronized (mResults) {
+                        mResults.put(url, result);
+                    }
+                } catch (IOException e) {
+                    Log.i(TAG, "Couldn't probe image: " + e.toString());
+                } catch (RuntimeException e) {
+                    // A bad URL shouldn't take the worker with it
+                    Log.w(TAG, "Couldn't probe image: " + e.toString());
+                }
+
+                deliver(url, result);
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the forums' smilies apart from every other image.
+ *
+ * There are only a few hundred of them but they're on nearly every post, so
+ * they're kept on internal storage rather than in the cache directory, all
+ * read into memory in the background when the app starts, and never evicted.
+ * Every post showing a smilie shares the same decoded bitmap. They're
+ * fetched on a thread of their own, so they never wait behind photos in the
+ * {@link ImageLoader}.
+ */
+public class SmilieCache {
+    private static final String TAG = "SmilieCache";
+
+    private static final String DIRECTORY = "smilies";
+
+    private static final String[] PATHS = {
+        "fi.somethingawful.com/images/smilies/",
+        "i.somethingawful.com/forumsystem/emoticons/",
+        "i.somethingawful.com/images/smilies/",
+    };
+
+    private static SmilieCache sInstance;
+
+    private final File mDirectory;
+    private final Resources mResources;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // By hash of the URL, which is also the file name
+    private final HashMap<String, Drawable.ConstantState> mSmilies = new HashMap<String, Drawable.ConstantState>();
+
+    // Callers waiting on each URL; one fetch serves them all
+    private final HashMap<String, ArrayList<ImageLoader.Callback>> mWaiting = 
+        new HashMap<String, ArrayList<ImageLoader.Callback>>();
+    private final LinkedBlockingQueue<String> mQueue = new LinkedBlockingQueue<String>();
+
+    public static synchronized SmilieCache getInstance(Context aContext) {
+        if (sInstance == null) {
+            sInstance = new SmilieCache(aContext.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private SmilieCache(Context aContext) {
+        mDirectory = new File(aContext.getFilesDir(), DIRECTORY);
+        mDirectory.mkdirs();
+        mResources = aContext.getResources();
+
+        Thread worker = new Worker();
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static boolean isSmilie(String aUrl) {
+        if (aUrl == null) {
+            return false;
+        }
+
+        int start = aUrl.indexOf("://");
+        if (start == -1) {
+            return false;
+        }
+
+        for (String path : PATHS) {
+            if (aUrl.startsWith(path, start + 3)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns a drawable for the smilie if it's in memory, sized to its
+     * intrinsic size and sharing its bitmap with every other copy.
+     */
+    public Drawable get(Resources aResources, String aUrl) {
+        Drawable.ConstantState state;
+        synchronized (mSmilies) {
+            state = mSmilies.get(ImageCache.hash(aUrl));
+        }
+
+        if (state == null) {
+            return null;
+        }
+
+        Drawable result = state.newDrawable(aResources);
+        result.setBounds(0, 0, result.getIntrinsicWidth(), result.getIntrinsicHeight());
+        return result;
+    }
+
+    /**
+     * Fetches a smilie that isn't in memory yet. The callback gets the
+     * shared bitmap, or null, on the UI thread. Must be called from the UI
+     * thread.
+     */
+    public void load(String aUrl, ImageLoader.Callback aCallback) {
+        ArrayList<ImageLoader.Callback> callbacks = mWaiting.get(aUrl);
+
+        if (callbacks == null) {
+            callbacks = new ArrayList<ImageLoader.Callback>(2);
+            mWaiting.put(aUrl, callbacks);
+            mQueue.offer(aUrl);
+        }
+
+        callbacks.add(aCallback);
+    }
+
+    public int getCount() {
+        synchronized (mSmilies) {
+            return mSmilies.size();
+        }
+    }
+
+    private Drawable.ConstantState decode(File aFile) {
+        Bitmap bitmap = BitmapFactory.decodeFile(aFile.getPath());
+        if (bitmap == null) {
+            return null;
+        }
+
+        return new BitmapDrawable(mResources, bitmap).getConstantState();
+    }
+
+    private void deliver(final String aUrl, final Drawable.ConstantState aState) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                ArrayList<ImageLoader.Callback> callbacks = mWaiting.remove(aUrl);
+                if (callbacks == null) {
+                    return;
+                }
+
+                Bitmap bitmap = aState == null ? null : ((BitmapDrawable) aState.newDrawable()).getBitmap();
+                for (ImageLoader.Callback callback : callbacks) {
+                    callback.onImageLoaded(aUrl, bitmap);
+                }
+            }
+        });
+    }
+
+    private class Worker extends Thread {
+        Worker() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            warm();
+
+            while (true) {
+                String url;
+                try {
+                    url = mQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                deliver(url, fetch(url));
+            }
+        }
+
+        /**
+         * Reads every smilie on disk into memory.
+         */
+        private void warm() {
+            long start = SystemClock.uptimeMillis();
+
+            File[] files = mDirectory.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            for (File file : files) {
+                if (file.getName().indexOf(".part") != -1) {
+                    file.delete();
+                    continue;
+                }
+
+                Drawable.ConstantState state = decode(file);
+                if (state != null) {
+                    synchronized (mSmilies) {
+                        mSmilies.put(file.getName(), state);
+                    }
+                }
+            }
+
+            Log.i(TAG, "Loaded " + getCount() + " smilies in " + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+
+        private Drawable.ConstantState fetch(String aUrl) {
+            String name = ImageCache.hash(aUrl);
+
+            synchronized (mSmilies) {
+                Drawable.ConstantState state = mSmilies.get(name);
+                if (state != null) {
+                    return state;
+                }
+            }
+
+            File file = new File(mDirectory, name);
+            try {
+                if (!file.exists()) {
+                    ImageCache.download(aUrl, file, new File(mDirectory, name + ".part"));
+                }
+            } catch (IOException e) {
+                Log.i(TAG, "Couldn't fetch smilie: " + e.toString());
+                return null;
+            }
+
+            Drawable.ConstantState state = decode(file);
+            if (state != null) {
+                synchronized (mSmilies) {
+                    mSmilies.put(name, state);
+                }
+            } else {
+                // Not an image; don't keep it around to fail again
+                file.delete();
+            }
+
+            return state;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.ferg.awful.list;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.text.Html;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.CursorAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.ferg.awful.R;
+import com.ferg.awful.thread.AwfulThread;
+
+/**
+ * A ListAdapter for thread rows read straight out of the provider.
+ *
+ * Rows are bound from the cursor's window as they scroll into view, so only
+ * the visible threads are ever turned into objects. Whenever the thread table
+ * changes underneath it the list runs its query again in the background and
+ * swaps the new cursor in, so the UI thread never waits on the database.
+ */
+public class ThreadCursorAdapter extends CursorAdapter {
+    private LayoutInflater mInflater;
+
+    private Uri mUri;
+    private String mSelection;
+    private String[] mSelectionArgs;
+    private String mSortOrder;
+
+    private QueryTask mQueryTask;
+    private boolean mRequeryPending;
+    private boolean mClosed;
+
+    private ContentObserver mObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean aSelfChange) {
+            requery();
+        }
+    };
+
+    private int mTitleIndex;
+    private int mAuthorIndex;
+    private int mUnreadCountIndex;
+    private int mStickyIndex;
+
+    /**
+     * Starts the first query straight away; the list is empty until it's
+     * done.
+     */
+    public ThreadCursorAdapter(Context aContext, Uri aUri, String aSelection, 
+            String[] aSelectionArgs, String aSortOrder) {
+        super(aContext, null, false);
+
+        mInflater = LayoutInflater.from(aContext);
+
+        mUri           = aUri;
+        mSelection     = aSelection;
+        mSelectionArgs = aSelectionArgs;
+        mSortOrder     = aSortOrder;
+
+        aContext.getContentResolver().registerContentObserver(aUri, true, mObserver);
+        requery();
+    }
+
+    /**
+     * Queries the provider again off the UI thread. Changes that come in
+     * while a query is running are picked up by one more query after it.
+     */
+    public void requery() {
+        if (mClosed) {
+            return;
+        }
+
+        if (mQueryTask != null) {
+            mRequeryPending = true;
+            return;
+        }
+
+        mQueryTask = new QueryTask();
+        mQueryTask.execute();
+    }
+
+    /**
+     * Stops watching the provider and closes the cursor. Call from the
+     * activity's onDestroy.
+     */
+    public void close() {
+        mClosed = true;
+
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        changeCursor(null);
+    }
+
+    private class QueryTask extends AsyncTask<Void, Void, Cursor> {
+        public Cursor doInBackground(Void... aParams) {
+            Cursor result = mContext.getContentResolver().query(mUri, null, 
+                    mSelection, mSelectionArgs, mSortOrder);
+
+            if (result != null) {
+                // Fill the window here rather than on the first bind
+                result.getCount();
+            }
+
+            return result;
+        }
+
+        public void onPostExecute(Cursor aResult) {
+            mQueryTask = null;
+
+            if (mClosed) {
+                if (aResult != null) {
+                    aResult.close();
+                }
+                return;
+            }
+
+            changeCursor(aResult);
+
+            if (mRequeryPending) {
+                mRequeryPending = false;
+                requery();
+            }
+        }
+    }
+
+    @Override
+    public void changeCursor(Cursor aCursor) {
+        findColumns(aCursor);
+
+        super.changeCursor(aCursor);
+    }
+
+    private void findColumns(Cursor aCursor) {
+        if (aCursor != null) {
+            mTitleIndex       = aCursor.getColumnIndex(AwfulThread.TITLE);
+            mAuthorIndex      = aCursor.getColumnIndex(AwfulThread.AUTHOR);
+            mUnreadCountIndex = aCursor.getColumnIndex(AwfulThread.UNREAD_COUNT);
+            mStickyIndex      = aCursor.getColumnIndex(AwfulThread.STICKY);
+        }
+    }
+
+    /**
+     * Returns the thread at the given position. Only the listing columns are
+     * filled in.
+     */
+    @Override
+    public AwfulThread getItem(int aPosition) {
+        Cursor cursor = (Cursor) super.getItem(aPosition);
+
+        return cursor == null ? null : AwfulThread.fromCursorRow(cursor);
+    }
+
+    private class ThreadViewHolder {
+    	public TextView title;
+    	public TextView author;
+    	public TextView unreadCount;
+    	public ImageView stickyIcon;
+
+    	public ThreadViewHolder(View view) {
+    		title       = (TextView)  view.findViewById(R.id.title);
+            author      = (TextView)  view.findViewById(R.id.author);
+            unreadCount = (TextView)  view.findViewById(R.id.unread_count);
+            stickyIcon  = (ImageView) view.findViewById(R.id.sticky_icon);
+    	}
+    }
+
+    @Override
+    public View newView(Context aContext, Cursor aCursor, ViewGroup aParent) {
+        View inflatedView = mInflater.inflate(R.layout.thread_item, null);
+        inflatedView.setTag(new ThreadViewHolder(inflatedView));
+
+        return inflatedView;
+    }
+
+    @Override
+    public void bindView(View aView, Context aContext, Cursor aCursor) {
+        ThreadViewHolder viewHolder = (ThreadViewHolder) aView.getTag();
+
+        viewHolder.title.setText(Html.fromHtml(aCursor.getString(mTitleIndex)));
+        viewHolder.author.setText("Author: " + aCursor.getString(mAuthorIndex));
+
+        int unreadCount = aCursor.getInt(mUnreadCountIndex);
+		if (unreadCount == -1) {
+			viewHolder.unreadCount.setVisibility(View.GONE);
+		} else {
+			viewHolder.unreadCount.setVisibility(View.VISIBLE);
+			viewHolder.unreadCount.setText(Integer.toString(unreadCount));
+		}
+
+        if (aCursor.getInt(mStickyIndex) == 1) {
+            viewHolder.stickyIcon.setVisibility(View.VISIBLE);
+        } else {
+        	viewHolder.stickyIcon.setVisibility(View.GONE);
+        }
+    }
+}
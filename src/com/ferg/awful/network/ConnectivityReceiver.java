@@ -0,0 +1,81 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.network;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+
+import com.ferg.awful.reply.OutboxService;
+
+/**
+ * Retries waiting "last read" marks and replies when a connection comes up.
+ * It's only enabled while {@link MarkReadQueue} or the outbox have something
+ * waiting.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+    private static final String TAG = "ConnectivityReceiver";
+
+    @Override
+    public void onReceive(Context aContext, Intent aIntent) {
+        if (aIntent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+            return;
+        }
+
+        final Context context = aContext.getApplicationContext();
+
+        OutboxService.start(context);
+
+        new Thread(TAG) {
+            public void run() {
+                // We may have been started just for this
+                NetworkUtils.restoreLoginCookies(context);
+
+                MarkReadQueue.retry(context);
+            }
+        }.start();
+    }
+
+    /**
+     * Switches the receiver on or off depending on whether anything is
+     * waiting for a connection.
+     */
+    public static void update(Context aContext) {
+        boolean waiting = MarkReadQueue.hasPending(aContext) || OutboxService.hasPending(aContext);
+
+        aContext.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(aContext, ConnectivityReceiver.class),
+                waiting ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED 
+                        : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+}
@@ -0,0 +1,101 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.network;
+
+import java.io.IOException;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.ferg.awful.constants.Constants;
+
+/**
+ * Sends "last read" marks to the site, keeping any that can't be sent until
+ * the connection comes back.
+ *
+ * Only the newest mark in a thread means anything, so pending marks are kept
+ * one per thread in their own preferences file. While any are waiting the
+ * {@link ConnectivityReceiver} is switched on to retry them.
+ */
+public class MarkReadQueue {
+    private static final String TAG = "MarkReadQueue";
+
+    private static final String PREFERENCES = "pending_mark_read";
+
+    private static SharedPreferences getPending(Context aContext) {
+        return aContext.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Marks a post read, replacing any mark still waiting for its thread.
+     *
+     * @param aLastReadUrl The post's last read URL, relative to the site
+     * @return Whether the site has the mark; if not it'll be retried
+     */
+    public static synchronized boolean send(Context aContext, String aThreadId, String aLastReadUrl) {
+        SharedPreferences pending = getPending(aContext);
+        pending.edit().putString(aThreadId, aLastReadUrl).commit();
+
+        retry(aContext);
+
+        return !pending.contains(aThreadId);
+    }
+
+    /**
+     * Sends every waiting mark, stopping at the first that can't get through.
+     */
+    public static synchronized void retry(Context aContext) {
+        SharedPreferences pending = getPending(aContext);
+
+        for (Map.Entry<String, ?> mark : pending.getAll().entrySet()) {
+            try {
+                int status = NetworkUtils.fire(Constants.BASE_URL + mark.getValue());
+
+                // Only the site falling over is worth another go
+                if (status >= 500) {
+                    Log.i(TAG, "Site returned " + status + " marking thread " + mark.getKey());
+                    continue;
+                }
+
+                pending.edit().remove(mark.getKey()).commit();
+            } catch (IOException e) {
+                Log.i(TAG, "Holding marks until we're back online: " + e.toString());
+                break;
+            }
+        }
+
+        ConnectivityReceiver.update(aContext);
+    }
+
+    static boolean hasPending(Context aContext) {
+        return getPending(aContext).getAll().size() > 0;
+    }
+}
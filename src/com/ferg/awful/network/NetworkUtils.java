@@ -27,6 +27,7 @@
 
 package com.ferg.awful.network;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
@@ -60,6 +61,8 @@ import org.htmlcleaner.TagTransformation;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.util.Log;
 
 import com.ferg.awful.constants.Constants;
@@ -70,6 +73,10 @@ public class NetworkUtils {
     private static DefaultHttpClient sHttpClient;
     private static HtmlCleaner sCleaner;
 
+    // Newer than the SDK we build against
+    private static final int TYPE_WIMAX    = 6;
+    private static final int TYPE_ETHERNET = 9;
+
     /**
      * Attempts to initialize the HttpClient with cookie values
      * stored in the given Context's SharedPreferences through the
@@ -109,6 +116,37 @@ public class NetworkUtils {
     	return false;
     }
     
+    /**
+     * Whether the active connection is one data isn't paid for by the
+     * megabyte, so there's no harm fetching things before they're asked for.
+     */
+    public static boolean isUnmetered(Context ctx) {
+        ConnectivityManager connectivity = 
+            (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+
+        if (network == null || !network.isConnected()) {
+            return false;
+        }
+
+        switch (network.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case TYPE_WIMAX:
+            case TYPE_ETHERNET:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the logged in user's id, as saved with the login cookies.
+     */
+    public static String getUserId(Context ctx) {
+    	return ctx.getSharedPreferences(Constants.COOKIE_PREFERENCE, Context.MODE_PRIVATE)
+    		.getString(Constants.COOKIE_PREF_USERID, null);
+    }
+
     /**
      * Clears cookies from both the current client's store and
      * the persistent SharedPreferences. Effectively, logs out.
@@ -223,12 +261,15 @@ public class NetworkUtils {
 
 	public static TagNode getWithRedirects(String aUrl, HashMap<String, String> aParams,
 			List<URI> redirects) throws Exception {
-        TagNode response = null;
         String parameters = getQueryStringParameters(aParams);
 
         Log.i(TAG, "Fetching " + aUrl + parameters);
 
-        URI location = new URI(aUrl + parameters);
+        return getWithRedirects(new URI(aUrl + parameters), redirects);
+	}
+
+	private static TagNode getWithRedirects(URI location, List<URI> redirects) throws Exception {
+        TagNode response = null;
 
         HttpGet httpGet;
         HttpResponse httpResponse;
@@ -258,6 +299,28 @@ public class NetworkUtils {
         return response;
 	}
 
+    /**
+     * Requests a URL only for what the request does on the site. Redirects
+     * aren't followed and the body is thrown away unread.
+     *
+     * @return The response's status code
+     */
+    public static int fire(String aUrl) throws IOException {
+        Log.i(TAG, "Firing " + aUrl);
+
+        HttpGet httpGet = new HttpGet(aUrl);
+        HttpClientParams.setRedirecting(httpGet.getParams(), false);
+
+        HttpResponse httpResponse = sHttpClient.execute(httpGet);
+
+        HttpEntity entity = httpResponse.getEntity();
+        if (entity != null) {
+            entity.consumeContent();
+        }
+
+        return httpResponse.getStatusLine().getStatusCode();
+    }
+
 	public static TagNode post(String aUrl, HashMap<String, String> aParams) throws Exception {
         TagNode response = null;
 
@@ -278,6 +341,63 @@ public class NetworkUtils {
 		return response;
 	}
 
+    /**
+     * Posts a form and follows the site on to wherever it sends us next,
+     * either by an HTTP redirect or by the meta refresh on its "thanks for
+     * posting" pages.
+     *
+     * @param redirects Filled with each URL requested after the post
+     * @return The page we end up on
+     */
+	public static TagNode postAndFollow(String aUrl, HashMap<String, String> aParams,
+			List<URI> redirects) throws Exception {
+		Log.i(TAG, aUrl);
+
+        HttpPost httpPost = new HttpPost(aUrl);
+        httpPost.setEntity(
+            new UrlEncodedFormEntity(getPostParameters(aParams)));  
+        HttpClientParams.setRedirecting(httpPost.getParams(), false);
+
+        HttpResponse httpResponse = sHttpClient.execute(httpPost);
+
+        HttpEntity entity = httpResponse.getEntity();
+        TagNode response  = null;
+        String next       = null;
+
+        if (httpResponse.containsHeader("location")) {
+            next = httpResponse.getFirstHeader("location").getValue();
+
+            if (entity != null) {
+                entity.consumeContent();
+            }
+        } else if (entity != null) {
+            response = sCleaner.clean(new InputStreamReader(entity.getContent()));
+            next     = getRefreshUrl(response);
+        }
+
+        if (next == null) {
+            return response;
+        }
+
+        return getWithRedirects(new URI(aUrl).resolve(next), redirects);
+	}
+
+    private static String getRefreshUrl(TagNode aPage) {
+        for (TagNode meta : aPage.getElementsByName("meta", true)) {
+            String content = meta.getAttributeByName("content");
+
+            if ("refresh".equalsIgnoreCase(meta.getAttributeByName("http-equiv")) && content != null) {
+                int url = content.toLowerCase().indexOf("url=");
+
+                if (url != -1) {
+                    return content.substring(url + 4).trim().replaceAll("&amp;", "&");
+                }
+            }
+        }
+
+        return null;
+    }
+
     private static ArrayList<NameValuePair> getPostParameters(HashMap<String, String> aParams) {
         // Append parameters
         ArrayList<NameValuePair> result = new ArrayList<NameValuePair>();  
@@ -12,11 +12,17 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.BaseColumns;
 import android.util.Log;
 
 import com.ferg.awful.constants.Constants;
+import com.ferg.awful.reply.Draft;
+import com.ferg.awful.reply.QueuedReply;
 import com.ferg.awful.thread.AwfulSubforum;
 import com.ferg.awful.thread.AwfulForum;
+import com.ferg.awful.thread.AwfulPost;
+import com.ferg.awful.thread.AwfulThread;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -25,23 +31,79 @@ public class AwfulProvider extends ContentProvider {
     private static final String TAG = "AwfulProvider";
 
     private static final String DATABASE_NAME = "awful.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 10;
 
-    private static final String TABLE_FORUM    = "forum";
-    private static final String TABLE_SUBFORUM = "subforum";
+    static final String TABLE_FORUM    = "forum";
+    static final String TABLE_SUBFORUM = "subforum";
+    static final String TABLE_THREAD   = "thread";
+    static final String TABLE_POST     = "post";
+    static final String TABLE_PAGE     = "page";
+    static final String TABLE_OUTBOX   = "outbox";
+    static final String TABLE_DRAFT    = "draft";
+
+    // Bookkeeping columns for cached thread pages, keyed by the post table's
+    // thread id and page columns
+    static final String PAGE_LAST_ACCESS = "last_access";
+    static final String PAGE_BYTES       = "bytes";
 
     private static final int FORUM       = 0;
     private static final int FORUM_ID    = 1;
     private static final int SUBFORUM    = 2;
     private static final int SUBFORUM_ID = 3;
+    private static final int THREAD      = 4;
+    private static final int THREAD_ID   = 5;
+    private static final int POST        = 6;
+    private static final int POST_ID     = 7;
+    private static final int OUTBOX      = 8;
+    private static final int OUTBOX_ID   = 9;
+    private static final int DRAFT       = 10;
 
     private static final UriMatcher sUriMatcher;
 	private static HashMap<String, String> sForumProjectionMap;
 	private static HashMap<String, String> sSubforumProjectionMap;
+	private static HashMap<String, String> sThreadProjectionMap;
+	private static HashMap<String, String> sPostProjectionMap;
+	private static HashMap<String, String> sOutboxProjectionMap;
+	private static HashMap<String, String> sDraftProjectionMap;
+
+    private static DatabaseHelper sDbHelper;
+
+    /**
+     * Returns the single helper shared by the provider and the
+     * {@link WriteBehindQueue}, so both go through the same connection and
+     * SQLite's locking never has to arbitrate between them.
+     */
+    static synchronized DatabaseHelper getDatabaseHelper(Context aContext) {
+        if (sDbHelper == null) {
+            sDbHelper = new DatabaseHelper(aContext.getApplicationContext());
+        }
+
+        return sDbHelper;
+    }
+
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        private final Context mContext;
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-        DatabaseHelper(Context aContext) {
+        private DatabaseHelper(Context aContext) {
             super(aContext, DATABASE_NAME, null, DATABASE_VERSION);
+
+            mContext = aContext;
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase aDb) {
+            super.onOpen(aDb);
+
+            // Write-ahead logging lets the UI keep reading while the write-behind
+            // queue commits. It only exists on Honeycomb and up, and we build
+            // against an older SDK, so it has to be looked up reflectively.
+            if (Build.VERSION.SDK_INT >= 11 && !aDb.isReadOnly()) {
+                try {
+                    SQLiteDatabase.class.getMethod("enableWriteAheadLogging").invoke(aDb);
+                } catch (Exception e) {
+                    Log.i(TAG, "Write-ahead logging unavailable: " + e.toString());
+                }
+            }
         }
 
         @Override
@@ -55,12 +117,107 @@ public class AwfulProvider extends ContentProvider {
                 AwfulSubforum.ID        + " INTEGER UNIQUE," + 
                 AwfulSubforum.TITLE     + " VARCHAR,"        + 
                 AwfulSubforum.PARENT_ID + " INTEGER);");
+
+            aDb.execSQL("CREATE TABLE " + TABLE_THREAD + " (" +
+                AwfulThread.ID           + " INTEGER PRIMARY KEY," + 
+                AwfulThread.FORUM_ID     + " INTEGER,"             + 
+                AwfulThread.TITLE        + " VARCHAR,"             + 
+                AwfulThread.AUTHOR       + " VARCHAR,"             + 
+                AwfulThread.STICKY       + " INTEGER,"             + 
+                AwfulThread.ICON         + " VARCHAR,"             + 
+                AwfulThread.UNREAD_COUNT + " INTEGER,"             + 
+                AwfulThread.CURRENT_PAGE + " INTEGER,"             + 
+                AwfulThread.LAST_PAGE    + " INTEGER,"             + 
+                AwfulThread.BOOKMARKED   + " INTEGER DEFAULT 0,"   + 
+                AwfulThread.LIST_POSITION     + " INTEGER,"        + 
+                AwfulThread.BOOKMARK_POSITION + " INTEGER,"        + 
+                AwfulThread.READ_PAGE         + " INTEGER,"        + 
+                AwfulThread.READ_POST_ID      + " INTEGER,"        + 
+                AwfulThread.READ_PAGE_POSTS   + " INTEGER,"        + 
+                AwfulThread.POSTS_PER_PAGE    + " INTEGER);");
+
+            aDb.execSQL("CREATE TABLE " + TABLE_POST + " (" +
+                AwfulPost.ID              + " INTEGER PRIMARY KEY," + 
+                AwfulPost.THREAD_ID       + " INTEGER,"             + 
+                AwfulPost.PAGE            + " INTEGER,"             + 
+                AwfulPost.POST_INDEX      + " INTEGER,"             + 
+                AwfulPost.DATE            + " VARCHAR,"             + 
+                AwfulPost.USER_ID         + " VARCHAR,"             + 
+                AwfulPost.USERNAME        + " VARCHAR,"             + 
+                AwfulPost.AVATAR          + " VARCHAR,"             + 
+                AwfulPost.CONTENT         + " BLOB,"                + 
+                AwfulPost.EDITED          + " VARCHAR,"             + 
+                AwfulPost.LAST_READ_URL   + " VARCHAR,"             + 
+                AwfulPost.PREVIOUSLY_READ + " INTEGER,"             + 
+                AwfulPost.LAST_READ       + " INTEGER,"             + 
+                AwfulPost.EVEN            + " INTEGER,"             + 
+                AwfulPost.EDITABLE        + " INTEGER,"             + 
+                AwfulPost.LINKS           + " INTEGER,"             + 
+                AwfulPost.CONTENT_HASH    + " INTEGER);");
+
+            aDb.execSQL("CREATE INDEX post_page ON " + TABLE_POST + " (" +
+                AwfulPost.THREAD_ID + "," + AwfulPost.PAGE + ");");
+
+            aDb.execSQL("CREATE TABLE " + TABLE_PAGE + " (" +
+                AwfulPost.THREAD_ID + " INTEGER,"  + 
+                AwfulPost.PAGE      + " INTEGER,"  + 
+                PAGE_LAST_ACCESS    + " INTEGER,"  + 
+                PAGE_BYTES          + " INTEGER, " + 
+                "PRIMARY KEY (" + AwfulPost.THREAD_ID + "," + AwfulPost.PAGE + "));");
+
+            createOutbox(aDb);
+            createDraft(aDb);
+        }
+
+        private boolean hasTable(SQLiteDatabase aDb, String aTable) {
+            Cursor table = aDb.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?", 
+                    new String[] { aTable });
+
+            try {
+                return table.moveToFirst();
+            } finally {
+                table.close();
+            }
+        }
+
+        private void createOutbox(SQLiteDatabase aDb) {
+            aDb.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_OUTBOX + " (" +
+                QueuedReply.ID           + " INTEGER PRIMARY KEY AUTOINCREMENT," + 
+                QueuedReply.THREAD_ID    + " INTEGER,"           + 
+                QueuedReply.POST_ID      + " INTEGER,"           + 
+                QueuedReply.MESSAGE      + " VARCHAR,"           + 
+                QueuedReply.STATE        + " INTEGER DEFAULT 0," + 
+                QueuedReply.ATTEMPTS     + " INTEGER DEFAULT 0," + 
+                QueuedReply.NEXT_ATTEMPT + " INTEGER DEFAULT 0," + 
+                QueuedReply.LAST_POST_ID + " INTEGER DEFAULT 0);");
+        }
+
+        private void createDraft(SQLiteDatabase aDb) {
+            aDb.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_DRAFT + " (" +
+                Draft.THREAD_ID + " INTEGER,"  + 
+                Draft.POST_ID   + " INTEGER,"  + 
+                Draft.MESSAGE   + " VARCHAR,"  + 
+                Draft.UPDATED   + " INTEGER, " + 
+                "PRIMARY KEY (" + Draft.THREAD_ID + "," + Draft.POST_ID + "));");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase aDb, int aOldVersion, int aNewVersion) {
             aDb.execSQL("DROP TABLE IF EXISTS " + TABLE_FORUM);
             aDb.execSQL("DROP TABLE IF EXISTS " + TABLE_SUBFORUM);
+            aDb.execSQL("DROP TABLE IF EXISTS " + TABLE_THREAD);
+            aDb.execSQL("DROP TABLE IF EXISTS " + TABLE_POST);
+            aDb.execSQL("DROP TABLE IF EXISTS " + TABLE_PAGE);
+
+            // The snapshots are copies of the pages just dropped
+            PageSnapshotStore.getInstance(mContext).clear();
+
+            // Everything else is a cache, but the outbox and drafts hold things
+            // the user wrote, so they're kept across upgrades
+            if (aOldVersion < 10 && hasTable(aDb, TABLE_OUTBOX)) {
+                aDb.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + 
+                        QueuedReply.LAST_POST_ID + " INTEGER DEFAULT 0");
+            }
 
             onCreate(aDb);
         }
@@ -70,7 +227,7 @@ public class AwfulProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        mDbHelper = new DatabaseHelper(getContext());
+        mDbHelper = getDatabaseHelper(getContext());
 
         return true;
     }
@@ -93,11 +250,35 @@ public class AwfulProvider extends ContentProvider {
             case FORUM:
                 table = TABLE_FORUM;
                 break;
+            case SUBFORUM:
+                table = TABLE_SUBFORUM;
+                break;
+            case THREAD:
+                table = TABLE_THREAD;
+                break;
+            case POST:
+                table = TABLE_POST;
+                break;
+            case OUTBOX_ID:
+                aWhereArgs = insertSelectionArg(aWhereArgs, aUri.getLastPathSegment());        
+                aWhere = prependWhere(aWhere, QueuedReply.ID + "=?");
+            case OUTBOX:
+                table = TABLE_OUTBOX;
+                break;
+            case DRAFT:
+                table = TABLE_DRAFT;
+                break;
             default:
                 break;
         }
 
-        return db.delete(table, aWhere, aWhereArgs);
+        int result = db.delete(table, aWhere, aWhereArgs);
+
+        if (result > 0) {
+            getContext().getContentResolver().notifyChange(aUri, null);
+        }
+
+        return result;
     }
 
     @Override
@@ -116,6 +297,24 @@ public class AwfulProvider extends ContentProvider {
             case SUBFORUM:
                 table = TABLE_SUBFORUM;
                 break;
+            case THREAD_ID:
+                aWhereArgs = insertSelectionArg(aWhereArgs, aUri.getLastPathSegment());        
+                aWhere = prependWhere(aWhere, AwfulThread.ID + "=?");
+            case THREAD:
+                table = TABLE_THREAD;
+                break;
+            case POST_ID:
+                aWhereArgs = insertSelectionArg(aWhereArgs, aUri.getLastPathSegment());        
+                aWhere = prependWhere(aWhere, AwfulPost.ID + "=?");
+            case POST:
+                table = TABLE_POST;
+                break;
+            case OUTBOX_ID:
+                aWhereArgs = insertSelectionArg(aWhereArgs, aUri.getLastPathSegment());        
+                aWhere = prependWhere(aWhere, QueuedReply.ID + "=?");
+            case OUTBOX:
+                table = TABLE_OUTBOX;
+                break;
         }
 
         int result = db.update(table, aValues, aWhere, aWhereArgs);
@@ -140,6 +339,12 @@ public class AwfulProvider extends ContentProvider {
             case SUBFORUM:
                 table = TABLE_SUBFORUM;
                 break;
+            case THREAD:
+                table = TABLE_THREAD;
+                break;
+            case POST:
+                table = TABLE_POST;
+                break;
         }
 
 		db.beginTransaction();
@@ -177,6 +382,15 @@ public class AwfulProvider extends ContentProvider {
 			case SUBFORUM:
 				table = TABLE_SUBFORUM;
 				break;
+			case THREAD:
+				table = TABLE_THREAD;
+				break;
+			case POST:
+				table = TABLE_POST;
+				break;
+			case OUTBOX:
+				table = TABLE_OUTBOX;
+				break;
         }
 
         long rowId = db.insert(table, "", aValues); 
@@ -184,6 +398,8 @@ public class AwfulProvider extends ContentProvider {
         if (rowId > -1) {
             Uri rowUri = ContentUris.withAppendedId(aUri, rowId);
 
+            getContext().getContentResolver().notifyChange(aUri, null);
+
             return rowUri;
         }
 
@@ -215,6 +431,31 @@ public class AwfulProvider extends ContentProvider {
 				builder.setTables(TABLE_SUBFORUM);
 				builder.setProjectionMap(sSubforumProjectionMap);
 				break;
+			case THREAD_ID:
+                aSelectionArgs = insertSelectionArg(aSelectionArgs, aUri.getLastPathSegment());        
+                builder.appendWhere(AwfulThread.ID + "=?");
+			case THREAD:
+				builder.setTables(TABLE_THREAD);
+				builder.setProjectionMap(sThreadProjectionMap);
+				break;
+			case POST_ID:
+                aSelectionArgs = insertSelectionArg(aSelectionArgs, aUri.getLastPathSegment());        
+                builder.appendWhere(AwfulPost.ID + "=?");
+			case POST:
+				builder.setTables(TABLE_POST);
+				builder.setProjectionMap(sPostProjectionMap);
+				break;
+			case OUTBOX_ID:
+                aSelectionArgs = insertSelectionArg(aSelectionArgs, aUri.getLastPathSegment());        
+                builder.appendWhere(QueuedReply.ID + "=?");
+			case OUTBOX:
+				builder.setTables(TABLE_OUTBOX);
+				builder.setProjectionMap(sOutboxProjectionMap);
+				break;
+			case DRAFT:
+				builder.setTables(TABLE_DRAFT);
+				builder.setProjectionMap(sDraftProjectionMap);
+				break;
         }
 
         Cursor result = builder.query(db, aProjection, aSelection, 
@@ -252,15 +493,38 @@ public class AwfulProvider extends ContentProvider {
         return aWhere + " AND " + aAppend;
     }
 
+    /**
+      * Puts a clause in front of the caller's where clause, matching the order
+      * {@link #insertSelectionArg(String[], String)} puts its argument in.
+      */
+    private String prependWhere(String aWhere, String aPrepend) {
+        if (aWhere == null) {
+            return aPrepend;
+        }
+
+        return aPrepend + " AND (" + aWhere + ")";
+    }
+
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 		sForumProjectionMap = new HashMap<String, String>();
 		sSubforumProjectionMap = new HashMap<String, String>();
+		sThreadProjectionMap = new HashMap<String, String>();
+		sPostProjectionMap = new HashMap<String, String>();
+		sOutboxProjectionMap = new HashMap<String, String>();
+		sDraftProjectionMap = new HashMap<String, String>();
 
 		sUriMatcher.addURI(Constants.AUTHORITY, "forum", FORUM);
 		sUriMatcher.addURI(Constants.AUTHORITY, "forum/#", FORUM_ID);
 		sUriMatcher.addURI(Constants.AUTHORITY, "subforum", SUBFORUM);
 		sUriMatcher.addURI(Constants.AUTHORITY, "subforum/#", SUBFORUM_ID);
+		sUriMatcher.addURI(Constants.AUTHORITY, "thread", THREAD);
+		sUriMatcher.addURI(Constants.AUTHORITY, "thread/#", THREAD_ID);
+		sUriMatcher.addURI(Constants.AUTHORITY, "post", POST);
+		sUriMatcher.addURI(Constants.AUTHORITY, "post/#", POST_ID);
+		sUriMatcher.addURI(Constants.AUTHORITY, "outbox", OUTBOX);
+		sUriMatcher.addURI(Constants.AUTHORITY, "outbox/#", OUTBOX_ID);
+		sUriMatcher.addURI(Constants.AUTHORITY, "draft", DRAFT);
 
 		sForumProjectionMap.put(AwfulForum.ID, AwfulForum.ID);
 		sForumProjectionMap.put(AwfulForum.TITLE, AwfulForum.TITLE);
@@ -269,5 +533,56 @@ public class AwfulProvider extends ContentProvider {
 		sSubforumProjectionMap.put(AwfulSubforum.ID, AwfulSubforum.ID);
 		sSubforumProjectionMap.put(AwfulSubforum.TITLE, AwfulSubforum.TITLE);
 		sSubforumProjectionMap.put(AwfulSubforum.PARENT_ID, AwfulSubforum.PARENT_ID);
+
+		sThreadProjectionMap.put(AwfulThread.ID, AwfulThread.ID);
+		// CursorAdapter needs an _id column to hand out stable row ids
+		sThreadProjectionMap.put(BaseColumns._ID, AwfulThread.ID + " AS " + BaseColumns._ID);
+		sThreadProjectionMap.put(AwfulThread.FORUM_ID, AwfulThread.FORUM_ID);
+		sThreadProjectionMap.put(AwfulThread.TITLE, AwfulThread.TITLE);
+		sThreadProjectionMap.put(AwfulThread.AUTHOR, AwfulThread.AUTHOR);
+		sThreadProjectionMap.put(AwfulThread.STICKY, AwfulThread.STICKY);
+		sThreadProjectionMap.put(AwfulThread.ICON, AwfulThread.ICON);
+		sThreadProjectionMap.put(AwfulThread.UNREAD_COUNT, AwfulThread.UNREAD_COUNT);
+		sThreadProjectionMap.put(AwfulThread.CURRENT_PAGE, AwfulThread.CURRENT_PAGE);
+		sThreadProjectionMap.put(AwfulThread.LAST_PAGE, AwfulThread.LAST_PAGE);
+		sThreadProjectionMap.put(AwfulThread.BOOKMARKED, AwfulThread.BOOKMARKED);
+		sThreadProjectionMap.put(AwfulThread.LIST_POSITION, AwfulThread.LIST_POSITION);
+		sThreadProjectionMap.put(AwfulThread.BOOKMARK_POSITION, AwfulThread.BOOKMARK_POSITION);
+		sThreadProjectionMap.put(AwfulThread.READ_PAGE, AwfulThread.READ_PAGE);
+		sThreadProjectionMap.put(AwfulThread.READ_POST_ID, AwfulThread.READ_POST_ID);
+		sThreadProjectionMap.put(AwfulThread.READ_PAGE_POSTS, AwfulThread.READ_PAGE_POSTS);
+		sThreadProjectionMap.put(AwfulThread.POSTS_PER_PAGE, AwfulThread.POSTS_PER_PAGE);
+
+		sPostProjectionMap.put(AwfulPost.ID, AwfulPost.ID);
+		sPostProjectionMap.put(AwfulPost.THREAD_ID, AwfulPost.THREAD_ID);
+		sPostProjectionMap.put(AwfulPost.PAGE, AwfulPost.PAGE);
+		sPostProjectionMap.put(AwfulPost.POST_INDEX, AwfulPost.POST_INDEX);
+		sPostProjectionMap.put(AwfulPost.DATE, AwfulPost.DATE);
+		sPostProjectionMap.put(AwfulPost.USER_ID, AwfulPost.USER_ID);
+		sPostProjectionMap.put(AwfulPost.USERNAME, AwfulPost.USERNAME);
+		sPostProjectionMap.put(AwfulPost.AVATAR, AwfulPost.AVATAR);
+		sPostProjectionMap.put(AwfulPost.CONTENT, AwfulPost.CONTENT);
+		sPostProjectionMap.put(AwfulPost.EDITED, AwfulPost.EDITED);
+		sPostProjectionMap.put(AwfulPost.LAST_READ_URL, AwfulPost.LAST_READ_URL);
+		sPostProjectionMap.put(AwfulPost.PREVIOUSLY_READ, AwfulPost.PREVIOUSLY_READ);
+		sPostProjectionMap.put(AwfulPost.LAST_READ, AwfulPost.LAST_READ);
+		sPostProjectionMap.put(AwfulPost.EVEN, AwfulPost.EVEN);
+		sPostProjectionMap.put(AwfulPost.EDITABLE, AwfulPost.EDITABLE);
+		sPostProjectionMap.put(AwfulPost.LINKS, AwfulPost.LINKS);
+		sPostProjectionMap.put(AwfulPost.CONTENT_HASH, AwfulPost.CONTENT_HASH);
+
+		sOutboxProjectionMap.put(QueuedReply.ID, QueuedReply.ID);
+		sOutboxProjectionMap.put(QueuedReply.THREAD_ID, QueuedReply.THREAD_ID);
+		sOutboxProjectionMap.put(QueuedReply.POST_ID, QueuedReply.POST_ID);
+		sOutboxProjectionMap.put(QueuedReply.MESSAGE, QueuedReply.MESSAGE);
+		sOutboxProjectionMap.put(QueuedReply.STATE, QueuedReply.STATE);
+		sOutboxProjectionMap.put(QueuedReply.ATTEMPTS, QueuedReply.ATTEMPTS);
+		sOutboxProjectionMap.put(QueuedReply.NEXT_ATTEMPT, QueuedReply.NEXT_ATTEMPT);
+		sOutboxProjectionMap.put(QueuedReply.LAST_POST_ID, QueuedReply.LAST_POST_ID);
+
+		sDraftProjectionMap.put(Draft.THREAD_ID, Draft.THREAD_ID);
+		sDraftProjectionMap.put(Draft.POST_ID, Draft.POST_ID);
+		sDraftProjectionMap.put(Draft.MESSAGE, Draft.MESSAGE);
+		sDraftProjectionMap.put(Draft.UPDATED, Draft.UPDATED);
     }
 }
@@ -0,0 +1,141 @@
+package com.ferg.awful.provider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.ferg.awful.reply.Draft;
+import com.ferg.awful.thread.AwfulPost;
+import com.ferg.awful.thread.AwfulThread;
+
+/**
+ * Keeps the cached thread pages in awful.db under the size the user picked in
+ * the settings, throwing out the least recently read pages first. Pages of
+ * bookmarked threads and threads with a reply in draft are never thrown out.
+ *
+ * Only ever run from the {@link WriteBehindQueue} writer, so trimming never
+ * competes with page writes, and it works through the pages a few at a time
+ * so readers are never locked out for long.
+ */
+class CacheTrimmer {
+    private static final String TAG = "CacheTrimmer";
+
+    static final String PREF_CACHE_SIZE = "page_cache_size";
+    static final int DEFAULT_CACHE_SIZE = 20;
+
+    // Pages evicted per transaction
+    private static final int EVICT_BATCH = 10;
+
+    private static final String EVICTION_CANDIDATES =
+        "SELECT " + AwfulPost.THREAD_ID + "," + AwfulPost.PAGE + "," + AwfulProvider.PAGE_BYTES +
+        " FROM " + AwfulProvider.TABLE_PAGE +
+        " WHERE " + AwfulPost.THREAD_ID + " NOT IN (SELECT " + AwfulThread.ID +
+            " FROM " + AwfulProvider.TABLE_THREAD + " WHERE " + AwfulThread.BOOKMARKED + "=1)" +
+        " AND " + AwfulPost.THREAD_ID + " NOT IN (SELECT " + Draft.THREAD_ID +
+            " FROM " + AwfulProvider.TABLE_DRAFT + ")" +
+        " ORDER BY " + AwfulProvider.PAGE_LAST_ACCESS + " ASC" +
+        " LIMIT " + EVICT_BATCH;
+
+    private final SharedPreferences mPrefs;
+
+    private SQLiteStatement mTotalBytes;
+    private SQLiteStatement mDeletePosts;
+    private SQLiteStatement mDeletePage;
+
+    CacheTrimmer(Context aContext) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(aContext);
+    }
+
+    private long getBudgetBytes() {
+        return mPrefs.getInt(PREF_CACHE_SIZE, DEFAULT_CACHE_SIZE) * 1024L * 1024L;
+    }
+
+    /**
+     * Evicts pages until the cache fits its budget or nothing evictable is
+     * left. Evicted pages lose their snapshots too.
+     *
+     * @return The number of bytes freed
+     */
+    long trim(SQLiteDatabase aDb, PageSnapshotStore aSnapshots) {
+        if (mTotalBytes == null) {
+            mTotalBytes = aDb.compileStatement("SELECT coalesce(sum(" + AwfulProvider.PAGE_BYTES + "),0)" +
+                    " FROM " + AwfulProvider.TABLE_PAGE);
+            mDeletePosts = aDb.compileStatement("DELETE FROM " + AwfulProvider.TABLE_POST +
+                    " WHERE " + AwfulPost.THREAD_ID + "=? AND " + AwfulPost.PAGE + "=?");
+            mDeletePage = aDb.compileStatement("DELETE FROM " + AwfulProvider.TABLE_PAGE +
+                    " WHERE " + AwfulPost.THREAD_ID + "=? AND " + AwfulPost.PAGE + "=?");
+        }
+
+        long budget = getBudgetBytes();
+        long total = mTotalBytes.simpleQueryForLong();
+        long freed = 0;
+
+        long[] evictedThreads = new long[EVICT_BATCH];
+        int[] evictedPages    = new int[EVICT_BATCH];
+
+        while (total > budget) {
+            int evicted = 0;
+
+            aDb.beginTransaction();
+            try {
+                Cursor candidates = aDb.rawQuery(EVICTION_CANDIDATES, null);
+                try {
+                    while (total > budget && candidates.moveToNext()) {
+                        long threadId = candidates.getLong(0);
+                        long page     = candidates.getLong(1);
+                        long bytes    = candidates.getLong(2);
+
+                        mDeletePosts.bindLong(1, threadId);
+                        mDeletePosts.bindLong(2, page);
+                        mDeletePosts.execute();
+
+                        mDeletePage.bindLong(1, threadId);
+                        mDeletePage.bindLong(2, page);
+                        mDeletePage.execute();
+
+                        evictedThreads[evicted] = threadId;
+                        evictedPages[evicted]   = (int) page;
+
+                        total -= bytes;
+                        freed += bytes;
+                        evicted++;
+                    }
+                } finally {
+                    candidates.close();
+                }
+
+                aDb.setTransactionSuccessful();
+            } finally {
+                aDb.endTransaction();
+            }
+
+            for (int i = 0; i < evicted; i++) {
+                aSnapshots.remove(evictedThreads[i], evictedPages[i]);
+            }
+
+            // Everything left is protected
+            if (evicted == 0) {
+                break;
+            }
+        }
+
+        if (freed > 0) {
+            Log.i(TAG, "Freed " + freed + " bytes, cache now " + total + "/" + budget);
+        }
+
+        return freed;
+    }
+
+    void close() {
+        if (mTotalBytes != null) {
+            mTotalBytes.close();
+            mDeletePosts.close();
+            mDeletePage.close();
+            mTotalBytes = null;
+        }
+    }
+}
@@ -0,0 +1,603 @@
+package com.ferg.awful.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ferg.awful.thread.AwfulPost;
+import com.ferg.awful.thread.AwfulThread;
+
+/**
+ * Keeps binary snapshots of the last few thread pages read, so reopening one
+ * is a read out of a memory mapped file instead of a trip through SQLite.
+ *
+ * Snapshots are only ever appended to the segment file. Replacing or dropping
+ * a page leaves its old record behind as dead space, which is reclaimed by
+ * rewriting the live records into a fresh file once enough has built up.
+ * Pages that go stale get an empty record so they stay dropped. The index of
+ * live records is kept in memory and rebuilt by scanning the file when the
+ * store is opened.
+ *
+ * Records are written and compacted by the {@link WriteBehindQueue} writer
+ * after each flush; reads can come from any thread.
+ */
+public class PageSnapshotStore {
+    private static final String TAG = "PageSnapshotStore";
+
+    private static final String FILE_NAME = "pages.seg";
+
+    // Each record is a header of magic, thread id, page and payload length.
+    // A record with no payload drops the page.
+    private static final int RECORD_MAGIC = 0x41574654;
+    private static final int HEADER_SIZE  = 4 + 8 + 4 + 4;
+
+    // Pages kept live; older ones become dead space
+    private static final int MAX_PAGES = 40;
+
+    // Compact once dead space is at least this big and half the file
+    private static final long COMPACT_MIN_DEAD = 512 * 1024;
+
+    private static final int FLAG_PREVIOUSLY_READ = 1;
+    private static final int FLAG_LAST_READ       = 2;
+    private static final int FLAG_EVEN            = 4;
+    private static final int FLAG_EDITABLE        = 8;
+    private static final int LINK_FLAGS_SHIFT     = 4;
+
+    private static PageSnapshotStore sInstance;
+
+    private final File mFile;
+
+    private RandomAccessFile mSegment;
+    private MappedByteBuffer mMap;
+    private long mLength;
+    private long mDeadBytes;
+
+    // Live records, least recently used first
+    private final LinkedHashMap<Long, Entry> mIndex = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> aEldest) {
+            if (size() > MAX_PAGES) {
+                mDeadBytes += aEldest.getValue().length;
+                return true;
+            }
+
+            return false;
+        }
+    };
+
+    // The page of each thread that was stored or read most recently
+    private final HashMap<Long, Integer> mLatestPage = new HashMap<Long, Integer>();
+
+    private static class Entry {
+        long offset;
+        int length;
+
+        Entry(long aOffset, int aLength) {
+            offset = aOffset;
+            length = aLength;
+        }
+    }
+
+    public static synchronized PageSnapshotStore getInstance(Context aContext) {
+        if (sInstance == null) {
+            sInstance = new PageSnapshotStore(new File(aContext.getCacheDir(), FILE_NAME));
+        }
+
+        return sInstance;
+    }
+
+    private PageSnapshotStore(File aFile) {
+        mFile = aFile;
+    }
+
+    private static long key(long aThreadId, int aPage) {
+        return (aThreadId << 20) | (aPage & 0xfffff);
+    }
+
+    /**
+     * Opens the segment and rebuilds the index from it, cutting the file off
+     * at the first record that doesn't read back cleanly.
+     */
+    private void open() throws IOException {
+        if (mSegment != null) {
+            return;
+        }
+
+        long start = SystemClock.uptimeMillis();
+
+        mSegment = new RandomAccessFile(mFile, "rw");
+        mLength  = mSegment.length();
+        mDeadBytes = 0;
+        mIndex.clear();
+        mLatestPage.clear();
+
+        remap();
+
+        long position = 0;
+        while (position + HEADER_SIZE <= mLength) {
+            mMap.position((int) position);
+
+            int magic     = mMap.getInt();
+            long threadId = mMap.getLong();
+            int page      = mMap.getInt();
+            int payload   = mMap.getInt();
+
+            if (magic != RECORD_MAGIC || payload < 0 || position + HEADER_SIZE + payload > mLength) {
+                break;
+            }
+
+            if (payload == 0) {
+                removeFromIndex(threadId, page);
+                mDeadBytes += HEADER_SIZE;
+            } else {
+                addToIndex(threadId, page, new Entry(position, HEADER_SIZE + payload));
+            }
+            position += HEADER_SIZE + payload;
+        }
+
+        if (position < mLength) {
+            Log.w(TAG, "Dropping " + (mLength - position) + " unreadable bytes");
+            mSegment.setLength(position);
+            mLength = position;
+            remap();
+        }
+
+        Log.i(TAG, "Opened " + mIndex.size() + " pages in " + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    private void remap() throws IOException {
+        mMap = mSegment.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mLength);
+    }
+
+    private void addToIndex(long aThreadId, int aPage, Entry aEntry) {
+        Entry old = mIndex.put(key(aThreadId, aPage), aEntry);
+        if (old != null) {
+            mDeadBytes += old.length;
+        }
+
+        mLatestPage.put(aThreadId, aPage);
+    }
+
+    private boolean removeFromIndex(long aThreadId, int aPage) {
+        Entry old = mIndex.remove(key(aThreadId, aPage));
+        if (old == null) {
+            return false;
+        }
+
+        mDeadBytes += old.length;
+        return true;
+    }
+
+    /**
+     * Throws the segment away after an I/O error; it only holds copies of
+     * what's in the database.
+     */
+    private void reset(IOException aError) {
+        Log.e(TAG, "Discarding snapshots", aError);
+
+        discard();
+    }
+
+    /**
+     * Throws every snapshot away, for when the tables they copy are dropped.
+     */
+    synchronized void clear() {
+        Log.i(TAG, "Clearing snapshots");
+
+        discard();
+    }
+
+    private void discard() {
+        try {
+            if (mSegment != null) {
+                mSegment.close();
+            }
+        } catch (IOException e) {
+            // Already going
+        }
+
+        mSegment = null;
+        mMap     = null;
+        mIndex.clear();
+        mLatestPage.clear();
+        mFile.delete();
+    }
+
+    /**
+     * Appends a snapshot of a page, replacing any earlier one.
+     *
+     * @param aPackedContent Each post's content as packed by {@link PostContentCodec}
+     */
+    synchronized void append(long aThreadId, int aPage, int aLastPage, String aTitle,
+            List<AwfulPost> aPosts, byte[][] aPackedContent) {
+        try {
+            open();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(RECORD_MAGIC);
+            out.writeLong(aThreadId);
+            out.writeInt(aPage);
+            out.writeInt(0);
+
+            out.writeInt(aLastPage);
+            writeString(out, aTitle);
+            out.writeInt(aPosts.size());
+
+            for (int i = 0; i < aPosts.size(); i++) {
+                AwfulPost post = aPosts.get(i);
+
+                out.writeLong(Long.parseLong(post.getId()));
+                writeString(out, post.getDate());
+                writeString(out, post.getUserId());
+                writeString(out, post.getUsername());
+                writeString(out, post.getAvatar());
+                writeString(out, post.getEdited());
+                writeString(out, post.getLastReadUrl());
+
+                int flags = post.getLinkFlags() << LINK_FLAGS_SHIFT;
+                if (post.isPreviouslyRead()) flags |= FLAG_PREVIOUSLY_READ;
+                if (post.isLastRead())       flags |= FLAG_LAST_READ;
+                if (post.isEven())           flags |= FLAG_EVEN;
+                if (post.isEditable())       flags |= FLAG_EDITABLE;
+                out.writeInt(flags);
+                out.writeInt(post.getContentHash());
+
+                writeBytes(out, aPackedContent[i]);
+            }
+
+            out.flush();
+
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            record.putInt(16, record.capacity() - HEADER_SIZE);
+
+            FileChannel channel = mSegment.getChannel();
+            long offset = mLength;
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+
+            mLength += record.capacity();
+            addToIndex(aThreadId, aPage, new Entry(offset, record.capacity()));
+        } catch (IOException e) {
+            reset(e);
+        }
+    }
+
+    /**
+     * Drops the snapshot of a page, if there is one.
+     */
+    synchronized void remove(long aThreadId, int aPage) {
+        try {
+            open();
+
+            if (removeFromIndex(aThreadId, aPage)) {
+                appendTombstone(aThreadId, aPage);
+            }
+        } catch (IOException e) {
+            reset(e);
+        }
+    }
+
+    /**
+     * Drops the snapshots of every page of a thread.
+     */
+    synchronized void removeThread(long aThreadId) {
+        try {
+            open();
+
+            ArrayList<Long> keys = new ArrayList<Long>();
+            for (Long key : mIndex.keySet()) {
+                if (key >> 20 == aThreadId) {
+                    keys.add(key);
+                }
+            }
+
+            for (Long key : keys) {
+                int page = (int) (key & 0xfffff);
+
+                removeFromIndex(aThreadId, page);
+                appendTombstone(aThreadId, page);
+            }
+
+            mLatestPage.remove(aThreadId);
+        } catch (IOException e) {
+            reset(e);
+        }
+    }
+
+    private void appendTombstone(long aThreadId, int aPage) throws IOException {
+        writeTombstone(mSegment.getChannel(), mLength, aThreadId, aPage);
+
+        mLength    += HEADER_SIZE;
+        mDeadBytes += HEADER_SIZE;
+    }
+
+    private static void writeTombstone(FileChannel aChannel, long aOffset, long aThreadId, int aPage)
+            throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE);
+        record.putInt(RECORD_MAGIC).putLong(aThreadId).putInt(aPage).putInt(0);
+        record.flip();
+
+        while (record.hasRemaining()) {
+            aChannel.write(record, aOffset + record.position());
+        }
+    }
+
+    /**
+     * Fills in a thread's posts, page numbers and (if it has none) title from
+     * its snapshot.
+     *
+     * @param aPage The page to read, or -1 for the thread's most recent page
+     * @return Whether there was a snapshot
+     */
+    public boolean read(AwfulThread aThread, int aPage) {
+        long threadId = Long.parseLong(aThread.getThreadId());
+        Entry entry;
+        ByteBuffer in;
+
+        // Only the lookup needs the lock. The record is decoded from the
+        // mapping as it was, which stays valid even if a compaction swaps
+        // the segment out in the meantime.
+        synchronized (this) {
+            try {
+                open();
+
+                if (aPage == -1) {
+                    Integer latest = mLatestPage.get(threadId);
+                    if (latest == null) {
+                        return false;
+                    }
+                    aPage = latest;
+                }
+
+                entry = mIndex.get(key(threadId, aPage));
+                if (entry == null) {
+                    return false;
+                }
+
+                if (entry.offset + entry.length > mMap.capacity()) {
+                    remap();
+                }
+
+                in = mMap.duplicate();
+                in.position((int) entry.offset + HEADER_SIZE);
+            } catch (IOException e) {
+                reset(e);
+                return false;
+            }
+        }
+
+        try {
+            int lastPage = in.getInt();
+            String title = readString(in);
+            int count    = in.getInt();
+
+            ArrayList<AwfulPost> posts = new ArrayList<AwfulPost>(count);
+            for (int i = 0; i < count; i++) {
+                AwfulPost post = new AwfulPost();
+
+                post.setId(Long.toString(in.getLong()));
+                post.setDate(readString(in));
+                post.setUserId(readString(in));
+                post.setUsername(readString(in));
+                post.setAvatar(readString(in));
+                post.setEdited(readString(in));
+                post.setLastReadUrl(readString(in));
+
+                int flags = in.getInt();
+                post.setPreviouslyRead((flags & FLAG_PREVIOUSLY_READ) != 0);
+                post.setLastRead((flags & FLAG_LAST_READ) != 0);
+                post.setEven((flags & FLAG_EVEN) != 0);
+                post.setEditable((flags & FLAG_EDITABLE) != 0);
+                post.setLinkFlags(flags >>> LINK_FLAGS_SHIFT);
+                post.setContentHash(in.getInt());
+
+                post.setPackedContent(readBytes(in));
+
+                posts.add(post);
+            }
+
+            synchronized (this) {
+                mLatestPage.put(threadId, aPage);
+            }
+
+            aThread.setPosts(posts);
+            aThread.setCurrentPage(aPage);
+            aThread.setLastPage(Math.max(aPage, lastPage));
+            if (aThread.getTitle() == null) {
+                aThread.setTitle(title);
+            }
+
+            return true;
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Snapshot of page " + aPage + " of thread " + aThread.getThreadId() + " is damaged");
+
+            synchronized (this) {
+                if (mIndex.get(key(threadId, aPage)) == entry) {
+                    mIndex.remove(key(threadId, aPage));
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            synchronized (this) {
+                reset(e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites the live records into a new segment if enough of the current
+     * one is dead. The records are copied out of the current mapping without
+     * the lock, so reads carry on meanwhile, and the new segment is swapped
+     * in under the lock once it's complete.
+     *
+     * Only the writer appends, and this runs on the writer, so no records
+     * turn up while the copy is made. Readers can still drop damaged pages,
+     * which are dropped again in the new segment.
+     */
+    void compactIfNeeded() {
+        ByteBuffer source;
+        long[] keys;
+        Entry[] entries;
+        long before;
+
+        synchronized (this) {
+            if (mSegment == null || mDeadBytes < COMPACT_MIN_DEAD || mDeadBytes * 2 < mLength) {
+                return;
+            }
+
+            try {
+                // Recent appends may not be mapped yet
+                if (mMap.capacity() < mLength) {
+                    remap();
+                }
+            } catch (IOException e) {
+                reset(e);
+                return;
+            }
+
+            source  = mMap;
+            before  = mLength;
+            keys    = new long[mIndex.size()];
+            entries = new Entry[mIndex.size()];
+
+            // Iterating doesn't disturb the access order
+            int i = 0;
+            for (Map.Entry<Long, Entry> live : mIndex.entrySet()) {
+                keys[i]    = live.getKey();
+                entries[i] = live.getValue();
+                i++;
+            }
+        }
+
+        long start = SystemClock.uptimeMillis();
+
+        File compacted = new File(mFile.getPath() + ".tmp");
+        long[] offsets = new long[entries.length];
+        RandomAccessFile target = null;
+
+        try {
+            target = new RandomAccessFile(compacted, "rw");
+            target.setLength(0);
+
+            FileChannel channel = target.getChannel();
+            long position = 0;
+
+            for (int i = 0; i < entries.length; i++) {
+                ByteBuffer record = source.duplicate();
+                record.position((int) entries[i].offset);
+                record.limit((int) entries[i].offset + entries[i].length);
+
+                offsets[i] = position;
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+            }
+
+            synchronized (this) {
+                if (mSegment == null) {
+                    // Thrown away after an error while we were copying
+                    target.close();
+                    compacted.delete();
+                    return;
+                }
+
+                HashSet<Entry> live = new HashSet<Entry>(mIndex.values());
+                long dead = 0;
+
+                for (int i = 0; i < entries.length; i++) {
+                    if (!live.contains(entries[i])) {
+                        writeTombstone(channel, position, keys[i] >> 20, (int) (keys[i] & 0xfffff));
+                        position += HEADER_SIZE;
+                        dead     += entries[i].length + HEADER_SIZE;
+                    }
+                }
+
+                target.close();
+                mSegment.close();
+                mSegment = null;
+
+                if (!compacted.renameTo(mFile)) {
+                    throw new IOException("Couldn't replace " + mFile);
+                }
+
+                mSegment   = new RandomAccessFile(mFile, "rw");
+                mLength    = position;
+                mDeadBytes = dead;
+                remap();
+
+                for (int i = 0; i < entries.length; i++) {
+                    entries[i].offset = offsets[i];
+                }
+
+                Log.i(TAG, "Compacted " + before + " to " + mLength + " bytes in " +
+                        (SystemClock.uptimeMillis() - start) + "ms");
+            }
+        } catch (IOException e) {
+            try {
+                if (target != null) {
+                    target.close();
+                }
+            } catch (IOException closing) {
+                // Deleted below anyway
+            }
+
+            compacted.delete();
+
+            synchronized (this) {
+                reset(e);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream aOut, String aValue) throws IOException {
+        writeBytes(aOut, aValue == null ? null : aValue.getBytes("UTF-8"));
+    }
+
+    private static void writeBytes(DataOutputStream aOut, byte[] aValue) throws IOException {
+        if (aValue == null) {
+            aOut.writeInt(-1);
+        } else {
+            aOut.writeInt(aValue.length);
+            aOut.write(aValue);
+        }
+    }
+
+    private static String readString(ByteBuffer aIn) throws UnsupportedEncodingException {
+        byte[] value = readBytes(aIn);
+
+        return value == null ? null : new String(value, "UTF-8");
+    }
+
+    private static byte[] readBytes(ByteBuffer aIn) {
+        int length = aIn.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] value = new byte[length];
+        aIn.get(value);
+
+        return value;
+    }
+}
@@ -0,0 +1,168 @@
+package com.ferg.awful.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Packs post HTML for the post table's content column and unpacks it again.
+ *
+ * Posts are deflated against a preset dictionary of the markup the forums
+ * repeat in nearly every post, which is what makes even short posts shrink.
+ * The first byte of a packed post records the format so the dictionary can
+ * change later without misreading older rows.
+ */
+public class PostContentCodec {
+    private static final String TAG = "PostContentCodec";
+
+    private static final byte FORMAT_DEFLATE_V1 = 1;
+
+    // Most common strings go last, where they're cheapest to refer back to
+    private static final String DICTIONARY_V1 =
+        "<p class=\"editedby\"><span>fucked around with this message at " +
+        "<div class=\"bbc-spoiler\">" +
+        "<a href=\"http://www.youtube.com/watch?v=" +
+        "<img src=\"http://fi.somethingawful.com/images/smilies/" +
+        "<img src=\"http://i.somethingawful.com/forumsystem/emoticons/emot-" +
+        ".gif\" alt=\"\" class=\"timg\" title=\":" +
+        "<a href=\"http://forums.somethingawful.com/showthread.php?goto=post&amp;postid=" +
+        "\" class=\"quote_link\">" +
+        "<div class=\"bbc-block\"><h4>" +
+        " posted:</h4><blockquote>" +
+        "</blockquote></div>" +
+        "\" target=\"_blank\" rel=\"nofollow\">" +
+        "<a href=\"http://" +
+        "<img src=\"http://" +
+        "&quot;&#039;&amp;" +
+        "<i></i><b></b><u></u>" +
+        "<td class=\"postbody\">" +
+        "</td><br /><br />";
+
+    private static final byte[] DICTIONARY = toBytes(DICTIONARY_V1);
+
+    // Log the decoding cost once per this many posts
+    private static final int REPORT_INTERVAL = 100;
+
+    private static int sDecodeCount;
+    private static long sDecodeMillis;
+    private static long sPackedBytes;
+    private static long sRawBytes;
+
+    private static byte[] toBytes(String aString) {
+        try {
+            return aString.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Packs a post's HTML for storage.
+     *
+     * @return The packed post, or null for null content
+     */
+    public static byte[] encode(String aContent) {
+        if (aContent == null) {
+            return null;
+        }
+
+        byte[] raw = toBytes(aContent);
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(raw);
+            deflater.finish();
+
+            ByteArrayOutputStream packed = new ByteArrayOutputStream(raw.length / 3 + 16);
+            packed.write(FORMAT_DEFLATE_V1);
+
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                packed.write(buffer, 0, length);
+            }
+
+            return packed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Unpacks a post stored by {@link #encode}.
+     *
+     * @return The post's HTML, or null if the blob was null or unreadable
+     */
+    public static String decode(byte[] aPacked) {
+        if (aPacked == null || aPacked.length == 0) {
+            return null;
+        }
+
+        if (aPacked[0] != FORMAT_DEFLATE_V1) {
+            Log.w(TAG, "Unknown post format " + aPacked[0]);
+            return null;
+        }
+
+        long start = SystemClock.uptimeMillis();
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(aPacked, 1, aPacked.length - 1);
+
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(aPacked.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+
+                if (length == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        Log.w(TAG, "Truncated post");
+                        return null;
+                    }
+                }
+
+                raw.write(buffer, 0, length);
+            }
+
+            String result = raw.toString("UTF-8");
+            recordDecode(SystemClock.uptimeMillis() - start, aPacked.length, raw.size());
+
+            return result;
+        } catch (DataFormatException e) {
+            Log.w(TAG, e.toString());
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static synchronized void recordDecode(long aMillis, int aPacked, int aRaw) {
+        sDecodeCount++;
+        sDecodeMillis += aMillis;
+        sPackedBytes  += aPacked;
+        sRawBytes     += aRaw;
+
+        if (sDecodeCount % REPORT_INTERVAL == 0) {
+            Log.i(TAG, "Decoded " + sDecodeCount + " posts in " + sDecodeMillis + "ms, " +
+                    sPackedBytes + " bytes to " + sRawBytes);
+        }
+    }
+
+    public static synchronized int getDecodeCount() {
+        return sDecodeCount;
+    }
+
+    public static synchronized long getDecodeMillis() {
+        return sDecodeMillis;
+    }
+}
@@ -0,0 +1,795 @@
+package com.ferg.awful.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ferg.awful.reply.Draft;
+import com.ferg.awful.thread.AwfulPost;
+import com.ferg.awful.thread.AwfulThread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Persists parsed pages on a single background writer so that page display
+ * never waits on the disk.
+ *
+ * Callers hand over whatever they just parsed and return immediately. The
+ * writer drains everything that piled up while it was busy and commits it
+ * all in one transaction using statements compiled once for the life of the
+ * writer.
+ */
+public class WriteBehindQueue {
+    private static final String TAG = "WriteBehindQueue";
+
+    private static WriteBehindQueue sInstance;
+
+    private final Context mContext;
+    private final LinkedBlockingQueue<Batch> mQueue = new LinkedBlockingQueue<Batch>();
+
+    private volatile long mLastFlushMillis;
+    private volatile long mMaxFlushMillis;
+    private volatile int mLastFlushBatches;
+    private volatile int mFlushCount;
+
+    public static synchronized WriteBehindQueue getInstance(Context aContext) {
+        if (sInstance == null) {
+            sInstance = new WriteBehindQueue(aContext.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private WriteBehindQueue(Context aContext) {
+        mContext = aContext;
+
+        Thread writer = new WriterThread();
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the thread's current page of posts, along with the page numbers
+     * and title parsed with it.
+     */
+    public void enqueueThreadPage(AwfulThread aThread) {
+        if (aThread == null || aThread.getThreadId() == null || aThread.getPosts() == null) {
+            return;
+        }
+
+        mQueue.offer(new ThreadPageBatch(aThread, new ArrayList<AwfulPost>(aThread.getPosts())));
+    }
+
+    /**
+     * Queues a page of a forum's thread list. Caching the first page forgets
+     * the positions of every later page, which have likely shifted.
+     */
+    public void enqueueThreadList(String aForumId, int aPage, List<AwfulThread> aThreads) {
+        if (aForumId == null || aThreads == null || aThreads.size() == 0) {
+            return;
+        }
+
+        mQueue.offer(new ThreadListBatch(aForumId, Math.max(1, aPage), 
+                    new ArrayList<AwfulThread>(aThreads), false));
+    }
+
+    /**
+     * Queues the user CP's bookmark list. Threads missing from it lose their
+     * bookmark flag, which is what keeps their pages safe from the trimmer.
+     */
+    public void enqueueBookmarks(List<AwfulThread> aThreads) {
+        if (aThreads == null) {
+            return;
+        }
+
+        mQueue.offer(new ThreadListBatch(null, 1, new ArrayList<AwfulThread>(aThreads), true));
+    }
+
+    /**
+     * Records that a cached page was just read, so the trimmer keeps it
+     * around longer. The write happens later on the writer thread.
+     */
+    public void touchPage(String aThreadId, int aPage) {
+        if (aThreadId == null) {
+            return;
+        }
+
+        mQueue.offer(new TouchPageBatch(Long.parseLong(aThreadId), Math.max(1, aPage)));
+    }
+
+    /**
+     * Queues a read marker the reader placed by hand, which may be behind
+     * where they'd read to.
+     *
+     * @param aPostIndex The marked post's position on its page
+     */
+    public void enqueueLastRead(String aThreadId, int aPage, String aPostId, int aPostIndex) {
+        if (aThreadId == null || aPostId == null) {
+            return;
+        }
+
+        mQueue.offer(new LastReadBatch(Long.parseLong(aThreadId), Math.max(1, aPage), 
+                    Long.parseLong(aPostId), aPostIndex));
+    }
+
+    /**
+     * Queues the reply or edit being written. An empty message throws the
+     * draft away.
+     *
+     * @param aPostId The post being edited, or null for a new reply
+     */
+    public void enqueueDraft(String aThreadId, String aPostId, String aMessage) {
+        if (aThreadId == null) {
+            return;
+        }
+
+        mQueue.offer(new DraftBatch(Long.parseLong(aThreadId), Draft.toKey(aPostId), aMessage, false));
+    }
+
+    /**
+     * Throws away a draft once it's been posted, unless it's been written
+     * over since.
+     */
+    public void discardDraft(String aThreadId, String aPostId, String aMessage) {
+        if (aThreadId == null || aMessage == null) {
+            return;
+        }
+
+        mQueue.offer(new DraftBatch(Long.parseLong(aThreadId), Draft.toKey(aPostId), aMessage, true));
+    }
+
+    /**
+     * Number of batches waiting on the writer.
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Time taken by the most recent flush, from transaction start to commit.
+     */
+    public long getLastFlushMillis() {
+        return mLastFlushMillis;
+    }
+
+    public long getMaxFlushMillis() {
+        return mMaxFlushMillis;
+    }
+
+    /**
+     * Number of batches coalesced into the most recent flush.
+     */
+    public int getLastFlushBatches() {
+        return mLastFlushBatches;
+    }
+
+    public int getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * Statements compiled once by the writer and reused for every batch.
+     */
+    private static class Statements {
+        final SQLiteStatement deletePage;
+        final SQLiteStatement insertPost;
+        final SQLiteStatement insertThread;
+        final SQLiteStatement updateThreadPages;
+        final SQLiteStatement updateThreadListing;
+        final SQLiteStatement replacePage;
+        final SQLiteStatement touchPage;
+        final SQLiteStatement clearBookmarks;
+        final SQLiteStatement setBookmark;
+        final SQLiteStatement clearListPositions;
+        final SQLiteStatement setListPosition;
+        final SQLiteStatement updateReadState;
+        final SQLiteStatement updatePostsPerPage;
+        final SQLiteStatement setReadState;
+        final SQLiteStatement setPostsRead;
+        final SQLiteStatement replaceDraft;
+        final SQLiteStatement deleteDraft;
+        final SQLiteStatement discardDraft;
+
+        Statements(SQLiteDatabase aDb) {
+            deletePage = aDb.compileStatement("DELETE FROM " + AwfulProvider.TABLE_POST +
+                    " WHERE " + AwfulPost.THREAD_ID + "=? AND " + AwfulPost.PAGE + "=?");
+
+            insertPost = aDb.compileStatement("INSERT OR REPLACE INTO " + AwfulProvider.TABLE_POST + " (" +
+                    AwfulPost.ID              + "," +
+                    AwfulPost.THREAD_ID       + "," +
+                    AwfulPost.PAGE            + "," +
+                    AwfulPost.POST_INDEX      + "," +
+                    AwfulPost.DATE            + "," +
+                    AwfulPost.USER_ID         + "," +
+                    AwfulPost.USERNAME        + "," +
+                    AwfulPost.AVATAR          + "," +
+                    AwfulPost.CONTENT         + "," +
+                    AwfulPost.EDITED          + "," +
+                    AwfulPost.LAST_READ_URL   + "," +
+                    AwfulPost.PREVIOUSLY_READ + "," +
+                    AwfulPost.LAST_READ       + "," +
+                    AwfulPost.EVEN            + "," +
+                    AwfulPost.EDITABLE        + "," +
+                    AwfulPost.LINKS           + "," +
+                    AwfulPost.CONTENT_HASH    +
+                    ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+
+            insertThread = aDb.compileStatement("INSERT OR IGNORE INTO " + AwfulProvider.TABLE_THREAD +
+                    " (" + AwfulThread.ID + ") VALUES (?)");
+
+            updateThreadPages = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.TITLE        + "=coalesce(?," + AwfulThread.TITLE + ")," +
+                    AwfulThread.CURRENT_PAGE + "=?," +
+                    AwfulThread.LAST_PAGE    + "=?" +
+                    " WHERE " + AwfulThread.ID + "=?");
+
+            updateThreadListing = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.FORUM_ID     + "=coalesce(?," + AwfulThread.FORUM_ID + ")," +
+                    AwfulThread.TITLE        + "=?," +
+                    AwfulThread.AUTHOR       + "=?," +
+                    AwfulThread.STICKY       + "=?," +
+                    AwfulThread.ICON         + "=?," +
+                    AwfulThread.UNREAD_COUNT + "=?" +
+                    " WHERE " + AwfulThread.ID + "=?");
+
+            replacePage = aDb.compileStatement("INSERT OR REPLACE INTO " + AwfulProvider.TABLE_PAGE + " (" +
+                    AwfulPost.THREAD_ID            + "," +
+                    AwfulPost.PAGE                 + "," +
+                    AwfulProvider.PAGE_LAST_ACCESS + "," +
+                    AwfulProvider.PAGE_BYTES       +
+                    ") VALUES (?,?,?,?)");
+
+            touchPage = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_PAGE + " SET " +
+                    AwfulProvider.PAGE_LAST_ACCESS + "=?" +
+                    " WHERE " + AwfulPost.THREAD_ID + "=? AND " + AwfulPost.PAGE + "=?");
+
+            clearBookmarks = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.BOOKMARKED        + "=0," +
+                    AwfulThread.BOOKMARK_POSITION + "=NULL");
+
+            setBookmark = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.BOOKMARKED        + "=1," +
+                    AwfulThread.BOOKMARK_POSITION + "=?" +
+                    " WHERE " + AwfulThread.ID + "=?");
+
+            clearListPositions = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.LIST_POSITION + "=NULL" +
+                    " WHERE " + AwfulThread.FORUM_ID + "=?");
+
+            setListPosition = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.LIST_POSITION + "=?" +
+                    " WHERE " + AwfulThread.ID + "=?");
+
+            // Viewing a page marks it read up to its last post, but going
+            // back to an earlier page doesn't unread anything
+            updateReadState = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.READ_PAGE       + "=?," +
+                    AwfulThread.READ_POST_ID    + "=?," +
+                    AwfulThread.READ_PAGE_POSTS + "=?" +
+                    " WHERE " + AwfulThread.ID + "=? AND coalesce(" + AwfulThread.READ_PAGE + ",0)<=?");
+
+            updatePostsPerPage = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.POSTS_PER_PAGE + "=?" +
+                    " WHERE " + AwfulThread.ID + "=?");
+
+            setReadState = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_THREAD + " SET " +
+                    AwfulThread.READ_PAGE       + "=?," +
+                    AwfulThread.READ_POST_ID    + "=?," +
+                    AwfulThread.READ_PAGE_POSTS + "=?" +
+                    " WHERE " + AwfulThread.ID + "=?");
+
+            // ?1 is the marked page and ?2 the marked post's index on it
+            String readPosts = "(" + AwfulPost.PAGE + "<?1 OR (" + AwfulPost.PAGE + "=?1 AND " + 
+                    AwfulPost.POST_INDEX + "<=?2))";
+            setPostsRead = aDb.compileStatement("UPDATE " + AwfulProvider.TABLE_POST + " SET " +
+                    AwfulPost.PREVIOUSLY_READ + "=" + readPosts + "," +
+                    AwfulPost.LAST_READ       + "=NOT " + readPosts +
+                    " WHERE " + AwfulPost.THREAD_ID + "=?3");
+
+            replaceDraft = aDb.compileStatement("INSERT OR REPLACE INTO " + AwfulProvider.TABLE_DRAFT + " (" +
+                    Draft.THREAD_ID + "," +
+                    Draft.POST_ID   + "," +
+                    Draft.MESSAGE   + "," +
+                    Draft.UPDATED   +
+                    ") VALUES (?,?,?,?)");
+
+            deleteDraft = aDb.compileStatement("DELETE FROM " + AwfulProvider.TABLE_DRAFT +
+                    " WHERE " + Draft.THREAD_ID + "=? AND " + Draft.POST_ID + "=?");
+
+            discardDraft = aDb.compileStatement("DELETE FROM " + AwfulProvider.TABLE_DRAFT +
+                    " WHERE " + Draft.THREAD_ID + "=? AND " + Draft.POST_ID + "=? AND " + 
+                    Draft.MESSAGE + "=?");
+        }
+
+        void close() {
+            deletePage.close();
+            insertPost.close();
+            insertThread.close();
+            updateThreadPages.close();
+            updateThreadListing.close();
+            replacePage.close();
+            touchPage.close();
+            clearBookmarks.close();
+            setBookmark.close();
+            clearListPositions.close();
+            setListPosition.close();
+            updateReadState.close();
+            updatePostsPerPage.close();
+            setReadState.close();
+            setPostsRead.close();
+            replaceDraft.close();
+            deleteDraft.close();
+            discardDraft.close();
+        }
+    }
+
+    private abstract static class Batch {
+        abstract void write(Statements aStatements);
+
+        abstract void collectChanges(Set<Uri> aUris);
+
+        /**
+         * Called once the batch is committed, for anything kept outside the
+         * database.
+         */
+        void afterCommit(PageSnapshotStore aSnapshots) {}
+    }
+
+    private static class ThreadPageBatch extends Batch {
+        private final String mThreadId;
+        private final String mTitle;
+        private final int mPage;
+        private final int mLastPage;
+        private final ArrayList<AwfulPost> mPosts;
+        // Packed by the writer, and kept in case the batch is written again
+        private byte[][] mPackedContent;
+
+        ThreadPageBatch(AwfulThread aThread, ArrayList<AwfulPost> aPosts) {
+            mThreadId = aThread.getThreadId();
+            mTitle    = aThread.getTitle();
+            mPage     = Math.max(1, aThread.getCurrentPage());
+            mLastPage = Math.max(mPage, aThread.getLastPage());
+            mPosts    = aPosts;
+        }
+
+        // On the writer thread, so whoever fetched the page can show it
+        // without waiting for this
+        private void pack() {
+            long start = SystemClock.uptimeMillis();
+            long raw = 0;
+            long packed = 0;
+
+            mPackedContent = new byte[mPosts.size()][];
+            for (int i = 0; i < mPosts.size(); i++) {
+                String content = mPosts.get(i).getContent();
+                mPackedContent[i] = PostContentCodec.encode(content);
+
+                if (content != null) {
+                    raw    += content.length();
+                    packed += mPackedContent[i].length;
+                }
+            }
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Packed page " + mPage + " of thread " + mThreadId + ": " + raw + " to " + 
+                        packed + " bytes in " + (SystemClock.uptimeMillis() - start) + "ms");
+            }
+        }
+
+        @Override
+        void write(Statements aStatements) {
+            long threadId = Long.parseLong(mThreadId);
+
+            if (mPackedContent == null) {
+                pack();
+            }
+
+            aStatements.insertThread.bindLong(1, threadId);
+            aStatements.insertThread.execute();
+
+            SQLiteStatement update = aStatements.updateThreadPages;
+            bindStringOrNull(update, 1, mTitle);
+            update.bindLong(2, mPage);
+            update.bindLong(3, mLastPage);
+            update.bindLong(4, threadId);
+            update.execute();
+
+            aStatements.deletePage.bindLong(1, threadId);
+            aStatements.deletePage.bindLong(2, mPage);
+            aStatements.deletePage.execute();
+
+            SQLiteStatement insert = aStatements.insertPost;
+            long bytes = 0;
+            for (int index = 0; index < mPosts.size(); index++) {
+                AwfulPost post = mPosts.get(index);
+
+                insert.clearBindings();
+                insert.bindLong(1, Long.parseLong(post.getId()));
+                insert.bindLong(2, threadId);
+                insert.bindLong(3, mPage);
+                insert.bindLong(4, index);
+                bindStringOrNull(insert, 5, post.getDate());
+                bindStringOrNull(insert, 6, post.getUserId());
+                bindStringOrNull(insert, 7, post.getUsername());
+                bindStringOrNull(insert, 8, post.getAvatar());
+                bindBlobOrNull(insert, 9, mPackedContent[index]);
+                bindStringOrNull(insert, 10, post.getEdited());
+                bindStringOrNull(insert, 11, post.getLastReadUrl());
+                insert.bindLong(12, post.isPreviouslyRead() ? 1 : 0);
+                insert.bindLong(13, post.isLastRead() ? 1 : 0);
+                insert.bindLong(14, post.isEven() ? 1 : 0);
+                insert.bindLong(15, post.isEditable() ? 1 : 0);
+                insert.bindLong(16, post.getLinkFlags());
+                insert.bindLong(17, post.getContentHash());
+                insert.executeInsert();
+
+                if (mPackedContent[index] != null) {
+                    bytes += mPackedContent[index].length;
+                }
+            }
+
+            SQLiteStatement page = aStatements.replacePage;
+            page.bindLong(1, threadId);
+            page.bindLong(2, mPage);
+            page.bindLong(3, System.currentTimeMillis());
+            page.bindLong(4, bytes);
+            page.execute();
+
+            if (mPosts.size() > 0) {
+                SQLiteStatement read = aStatements.updateReadState;
+                read.bindLong(1, mPage);
+                read.bindLong(2, Long.parseLong(mPosts.get(mPosts.size() - 1).getId()));
+                read.bindLong(3, mPosts.size());
+                read.bindLong(4, threadId);
+                read.bindLong(5, mPage);
+                read.execute();
+
+                // Every page but the last is full
+                if (mPage < mLastPage) {
+                    aStatements.updatePostsPerPage.bindLong(1, mPosts.size());
+                    aStatements.updatePostsPerPage.bindLong(2, threadId);
+                    aStatements.updatePostsPerPage.execute();
+                }
+            }
+        }
+
+        @Override
+        void collectChanges(Set<Uri> aUris) {
+            aUris.add(AwfulThread.CONTENT_URI);
+            aUris.add(AwfulPost.CONTENT_URI);
+        }
+
+        @Override
+        void afterCommit(PageSnapshotStore aSnapshots) {
+            aSnapshots.append(Long.parseLong(mThreadId), mPage, mLastPage, mTitle, mPosts, mPackedContent);
+        }
+    }
+
+    private static class ThreadListBatch extends Batch {
+        private final String mForumId;
+        private final int mPage;
+        private final ArrayList<AwfulThread> mThreads;
+        private final boolean mBookmarks;
+
+        ThreadListBatch(String aForumId, int aPage, ArrayList<AwfulThread> aThreads, boolean aBookmarks) {
+            mForumId   = aForumId;
+            mPage      = aPage;
+            mThreads   = aThreads;
+            mBookmarks = aBookmarks;
+        }
+
+        @Override
+        void write(Statements aStatements) {
+            SQLiteStatement update = aStatements.updateThreadListing;
+            long position = (mPage - 1) * AwfulThread.LIST_PAGE_STRIDE;
+
+            if (mBookmarks) {
+                aStatements.clearBookmarks.execute();
+            } else if (mPage == 1) {
+                aStatements.clearListPositions.bindString(1, mForumId);
+                aStatements.clearListPositions.execute();
+            }
+
+            for (AwfulThread thread : mThreads) {
+                long threadId = Long.parseLong(thread.getThreadId());
+
+                aStatements.insertThread.bindLong(1, threadId);
+                aStatements.insertThread.execute();
+
+                update.clearBindings();
+                bindStringOrNull(update, 1, mForumId);
+                bindStringOrNull(update, 2, thread.getTitle());
+                bindStringOrNull(update, 3, thread.getAuthor());
+                update.bindLong(4, thread.isSticky() ? 1 : 0);
+                bindStringOrNull(update, 5, thread.getIcon());
+                update.bindLong(6, thread.getUnreadCount());
+                update.bindLong(7, threadId);
+                update.execute();
+
+                if (mBookmarks) {
+                    aStatements.setBookmark.bindLong(1, position++);
+                    aStatements.setBookmark.bindLong(2, threadId);
+                    aStatements.setBookmark.execute();
+                } else {
+                    aStatements.setListPosition.bindLong(1, position++);
+                    aStatements.setListPosition.bindLong(2, threadId);
+                    aStatements.setListPosition.execute();
+                }
+            }
+        }
+
+        @Override
+        void collectChanges(Set<Uri> aUris) {
+            aUris.add(AwfulThread.CONTENT_URI);
+        }
+    }
+
+    private static class TouchPageBatch extends Batch {
+        private final long mThreadId;
+        private final int mPage;
+        private final long mAccessed;
+
+        TouchPageBatch(long aThreadId, int aPage) {
+            mThreadId = aThreadId;
+            mPage     = aPage;
+            mAccessed = System.currentTimeMillis();
+        }
+
+        @Override
+        void write(Statements aStatements) {
+            SQLiteStatement touch = aStatements.touchPage;
+            touch.bindLong(1, mAccessed);
+            touch.bindLong(2, mThreadId);
+            touch.bindLong(3, mPage);
+            touch.execute();
+        }
+
+        @Override
+        void collectChanges(Set<Uri> aUris) {
+            // Nobody observes access times
+        }
+    }
+
+    private static class LastReadBatch extends Batch {
+        private final long mThreadId;
+        private final int mPage;
+        private final long mPostId;
+        private final int mPostIndex;
+
+        LastReadBatch(long aThreadId, int aPage, long aPostId, int aPostIndex) {
+            mThreadId  = aThreadId;
+            mPage      = aPage;
+            mPostId    = aPostId;
+            mPostIndex = aPostIndex;
+        }
+
+        @Override
+        void write(Statements aStatements) {
+            SQLiteStatement state = aStatements.setReadState;
+            state.bindLong(1, mPage);
+            state.bindLong(2, mPostId);
+            state.bindLong(3, mPostIndex + 1);
+            state.bindLong(4, mThreadId);
+            state.execute();
+
+            SQLiteStatement posts = aStatements.setPostsRead;
+            posts.bindLong(1, mPage);
+            posts.bindLong(2, mPostIndex);
+            posts.bindLong(3, mThreadId);
+            posts.execute();
+        }
+
+        @Override
+        void collectChanges(Set<Uri> aUris) {
+            aUris.add(AwfulPost.CONTENT_URI);
+        }
+
+        @Override
+        void afterCommit(PageSnapshotStore aSnapshots) {
+            // The read flags just changed on every cached page of the thread
+            aSnapshots.removeThread(mThreadId);
+        }
+    }
+
+    private static class DraftBatch extends Batch {
+        private final long mThreadId;
+        private final long mPostId;
+        private final String mMessage;
+        private final boolean mDiscard;
+        private final long mUpdated;
+
+        DraftBatch(long aThreadId, long aPostId, String aMessage, boolean aDiscard) {
+            mThreadId = aThreadId;
+            mPostId   = aPostId;
+            mMessage  = aMessage;
+            mDiscard  = aDiscard;
+            mUpdated  = System.currentTimeMillis();
+        }
+
+        @Override
+        void write(Statements aStatements) {
+            SQLiteStatement statement;
+
+            if (mDiscard) {
+                statement = aStatements.discardDraft;
+                statement.bindString(3, mMessage);
+            } else if (mMessage == null || mMessage.trim().length() == 0) {
+                statement = aStatements.deleteDraft;
+            } else {
+                statement = aStatements.replaceDraft;
+                statement.bindString(3, mMessage);
+                statement.bindLong(4, mUpdated);
+            }
+
+            statement.bindLong(1, mThreadId);
+            statement.bindLong(2, mPostId);
+            statement.execute();
+        }
+
+        @Override
+        void collectChanges(Set<Uri> aUris) {
+            // Drafts are only read when the reply screen opens
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement aStatement, int aIndex, String aValue) {
+        if (aValue == null) {
+            aStatement.bindNull(aIndex);
+        } else {
+            aStatement.bindString(aIndex, aValue);
+        }
+    }
+
+    private static void bindBlobOrNull(SQLiteStatement aStatement, int aIndex, byte[] aValue) {
+        if (aValue == null) {
+            aStatement.bindNull(aIndex);
+        } else {
+            aStatement.bindBlob(aIndex, aValue);
+        }
+    }
+
+    private class WriterThread extends Thread {
+        WriterThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            Statements statements = null;
+            CacheTrimmer trimmer = new CacheTrimmer(mContext);
+            PageSnapshotStore snapshots = PageSnapshotStore.getInstance(mContext);
+            ArrayList<Batch> pending = new ArrayList<Batch>();
+
+            while (true) {
+                try {
+                    pending.add(mQueue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                // Everything that queued up while we were busy goes into
+                // the same transaction
+                mQueue.drainTo(pending);
+
+                try {
+                    SQLiteDatabase db = AwfulProvider.getDatabaseHelper(mContext).getWritableDatabase();
+
+                    if (statements == null) {
+                        statements = new Statements(db);
+                    }
+
+                    try {
+                        flush(db, statements, pending);
+                    } catch (RuntimeException e) {
+                        // One bad batch rolls back everything it was flushed
+                        // with, so write them one at a time to keep the rest
+                        Log.w(TAG, "Failed to write " + pending.size() + " batches, retrying separately", e);
+                        flushSeparately(db, statements, pending);
+                    }
+
+                    for (Batch batch : pending) {
+                        batch.afterCommit(snapshots);
+                    }
+
+                    // Only trim once the queue has run dry, so eviction never
+                    // holds up pages that are waiting to be written
+                    if (mQueue.isEmpty()) {
+                        if (trimmer.trim(db, snapshots) > 0) {
+                            mContext.getContentResolver().notifyChange(AwfulPost.CONTENT_URI, null);
+                        }
+
+                        snapshots.compactIfNeeded();
+                    }
+                } catch (Exception e) {
+                    // Losing the database shouldn't take the writer down with
+                    // it; the pages will simply be fetched from the network
+                    // next time
+                    Log.e(TAG, "Failed to write " + pending.size() + " batches", e);
+
+                    if (statements != null) {
+                        statements.close();
+                        statements = null;
+                    }
+                    trimmer.close();
+                }
+
+                pending.clear();
+            }
+
+            if (statements != null) {
+                statements.close();
+            }
+            trimmer.close();
+        }
+
+        /**
+         * Flushes each batch in its own transaction, dropping the ones that
+         * still fail from the list.
+         */
+        private void flushSeparately(SQLiteDatabase aDb, Statements aStatements, ArrayList<Batch> aBatches) {
+            Iterator<Batch> batches = aBatches.iterator();
+
+            while (batches.hasNext()) {
+                Batch batch = batches.next();
+
+                try {
+                    flush(aDb, aStatements, Collections.singletonList(batch));
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Dropping " + batch.getClass().getSimpleName(), e);
+                    batches.remove();
+                }
+            }
+        }
+
+        private void flush(SQLiteDatabase aDb, Statements aStatements, List<Batch> aBatches) {
+            long start = SystemClock.uptimeMillis();
+
+            aDb.beginTransaction();
+            try {
+                for (Batch batch : aBatches) {
+                    batch.write(aStatements);
+                }
+
+                aDb.setTransactionSuccessful();
+            } finally {
+                aDb.endTransaction();
+            }
+
+            long elapsed = SystemClock.uptimeMillis() - start;
+
+            mLastFlushMillis  = elapsed;
+            mLastFlushBatches = aBatches.size();
+            mMaxFlushMillis   = Math.max(mMaxFlushMillis, elapsed);
+            mFlushCount++;
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Flushed " + aBatches.size() + " batches in " + elapsed + "ms, " +
+                        mQueue.size() + " still queued");
+            }
+
+            // Observers hear about each table once per flush, not once per batch
+            HashSet<Uri> changed = new HashSet<Uri>();
+            for (Batch batch : aBatches) {
+                batch.collectChanges(changed);
+            }
+
+            ContentResolver resolver = mContext.getContentResolver();
+            for (Uri uri : changed) {
+                resolver.notifyChange(uri, null);
+            }
+        }
+    }
+}
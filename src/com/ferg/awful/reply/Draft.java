@@ -0,0 +1,82 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.reply;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.ferg.awful.constants.Constants;
+
+/**
+ * Column names and lookups for reply drafts, which are saved as they're
+ * typed by way of the {@link com.ferg.awful.provider.WriteBehindQueue}.
+ *
+ * There's one draft per thread for a new reply and one per post being
+ * edited. A draft is thrown away once the outbox has sent it.
+ */
+public class Draft {
+    public static final String THREAD_ID = "thread_id";
+    // NEW_REPLY for a reply, otherwise the post being edited
+    public static final String POST_ID   = "post_id";
+    public static final String MESSAGE   = "message";
+    public static final String UPDATED   = "updated";
+
+    public static final long NEW_REPLY = 0;
+
+    public static final String PATH = "/draft";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + Constants.AUTHORITY + PATH);
+
+    /**
+     * @return The draft's text, or null if there's no draft
+     */
+    public static String load(Context aContext, String aThreadId, String aPostId) {
+        Cursor query = aContext.getContentResolver().query(CONTENT_URI, 
+                new String[] { MESSAGE }, THREAD_ID + "=? AND " + POST_ID + "=?",
+                new String[] { aThreadId, Long.toString(toKey(aPostId)) }, null);
+
+        if (query == null) {
+            return null;
+        }
+
+        try {
+            return query.moveToFirst() ? query.getString(0) : null;
+        } finally {
+            query.close();
+        }
+    }
+
+    /**
+     * Turns an edited post's id, or null for a new reply, into the draft's
+     * post id column.
+     */
+    public static long toKey(String aPostId) {
+        return aPostId == null ? NEW_REPLY : Long.parseLong(aPostId);
+    }
+}
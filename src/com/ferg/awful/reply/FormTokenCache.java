@@ -0,0 +1,152 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.reply;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Holds the formkey and form_cookie the reply form needs, per thread, so
+ * they can be fetched in the background while the thread is being read
+ * rather than when the reply screen opens.
+ *
+ * A form cookie is only good for one post, so tokens are dropped once
+ * they've been handed out, and anything older than {@link #MAX_AGE} is
+ * fetched again.
+ */
+public class FormTokenCache {
+    private static final String TAG = "FormTokenCache";
+
+    private static final long MAX_AGE = 20 * 60 * 1000;
+
+    private static final HashMap<String, Tokens> sTokens = new HashMap<String, Tokens>();
+
+    // Threads with a fetch in flight, so we never ask for the same form twice
+    private static final HashSet<String> sFetching = new HashSet<String>();
+
+    public static class Tokens {
+        private final String mFormKey;
+        private final String mFormCookie;
+        private final long mFetched;
+
+        public Tokens(String aFormKey, String aFormCookie) {
+            mFormKey    = aFormKey;
+            mFormCookie = aFormCookie;
+            mFetched    = SystemClock.elapsedRealtime();
+        }
+
+        public String getFormKey() {
+            return mFormKey;
+        }
+
+        public String getFormCookie() {
+            return mFormCookie;
+        }
+
+        private boolean isFresh() {
+            return SystemClock.elapsedRealtime() - mFetched < MAX_AGE;
+        }
+    }
+
+    /**
+     * Starts fetching the tokens for a thread unless we already have fresh
+     * ones or they're on their way. Returns immediately.
+     */
+    public static void prefetch(final String aThreadId) {
+        synchronized (FormTokenCache.class) {
+            Tokens tokens = sTokens.get(aThreadId);
+
+            if ((tokens != null && tokens.isFresh()) || sFetching.contains(aThreadId)) {
+                return;
+            }
+
+            sFetching.add(aThreadId);
+        }
+
+        new Thread() {
+            public void run() {
+                fetch(aThreadId);
+            }
+        }.start();
+    }
+
+    /**
+     * Takes the tokens for a thread, waiting on a prefetch or fetching them
+     * here if need be. Don't call this from the UI thread.
+     *
+     * @return The tokens, or null if they couldn't be fetched
+     */
+    public static Tokens take(String aThreadId) {
+        synchronized (FormTokenCache.class) {
+            try {
+                while (sFetching.contains(aThreadId)) {
+                    FormTokenCache.class.wait();
+                }
+            } catch (InterruptedException e) {
+                return null;
+            }
+
+            Tokens tokens = sTokens.remove(aThreadId);
+            if (tokens != null && tokens.isFresh()) {
+                return tokens;
+            }
+
+            sFetching.add(aThreadId);
+        }
+
+        fetch(aThreadId);
+
+        synchronized (FormTokenCache.class) {
+            return sTokens.remove(aThreadId);
+        }
+    }
+
+    private static void fetch(String aThreadId) {
+        Tokens tokens = null;
+
+        try {
+            tokens = Reply.getFormTokens(aThreadId);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.i(TAG, e.toString());
+        }
+
+        synchronized (FormTokenCache.class) {
+            if (tokens != null) {
+                sTokens.put(aThreadId, tokens);
+            }
+
+            sFetching.remove(aThreadId);
+            FormTokenCache.class.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.reply;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.htmlcleaner.TagNode;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.ferg.awful.R;
+import com.ferg.awful.network.ConnectivityReceiver;
+import com.ferg.awful.network.NetworkUtils;
+import com.ferg.awful.provider.WriteBehindQueue;
+import com.ferg.awful.thread.AwfulPost;
+import com.ferg.awful.thread.AwfulThread;
+
+/**
+ * Sends the replies and edits waiting in the outbox.
+ *
+ * Replies go out oldest first, and a reply that can't be sent holds back
+ * any later ones in the same thread so they stay in order. Failed attempts
+ * are retried with a growing delay on a fresh form cookie. Anything that
+ * can't be sent for want of a connection waits for the
+ * {@link ConnectivityReceiver} without using up an attempt.
+ *
+ * When an attempt dies after the request went out the site may have the
+ * post already. The thread's last post is noted before a reply is first sent,
+ * so before trying again the thread is searched back from the end for a
+ * post of the user's newer than that.
+ */
+public class OutboxService extends IntentService {
+    private static final String TAG = "OutboxService";
+
+    private static final int MAX_ATTEMPTS = 6;
+
+    // Doubled after every failed attempt
+    private static final long RETRY_DELAY = 30 * 1000;
+
+    // How far back from the end of the thread to look for a reply that may
+    // have got through, before leaving it for next time
+    private static final int MAX_PAGES_SEARCHED = 10;
+
+    // The page the site sent back after the last reply or edit, waiting for
+    // the thread view to pick it up. It's too big to pass around in intents.
+    private static AwfulThread sPostedPage;
+
+    private Handler mHandler;
+
+    public OutboxService() {
+        super(TAG);
+    }
+
+    public static void start(Context aContext) {
+        aContext.startService(new Intent(aContext, OutboxService.class));
+    }
+
+    /**
+     * Whether anything in the outbox is still to be sent.
+     */
+    public static boolean hasPending(Context aContext) {
+        Cursor pending = aContext.getContentResolver().query(QueuedReply.CONTENT_URI, 
+                new String[] { QueuedReply.ID }, QueuedReply.STATE + "!=" + QueuedReply.STATE_FAILED, 
+                null, null);
+
+        try {
+            return pending.getCount() > 0;
+        } finally {
+            pending.close();
+        }
+    }
+
+    private static synchronized void setPostedPage(AwfulThread aThread) {
+        sPostedPage = aThread;
+    }
+
+    /**
+     * Hands over the page the site returned after the last reply or edit to
+     * the given thread, if there is one.
+     */
+    public static synchronized AwfulThread takePostedPage(String aThreadId) {
+        AwfulThread result = sPostedPage;
+        sPostedPage = null;
+
+        if (result != null && !result.getThreadId().equals(aThreadId)) {
+            return null;
+        }
+
+        return result;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mHandler = new Handler();
+    }
+
+    @Override
+    protected void onHandleIntent(Intent aIntent) {
+        // Offline, the connectivity receiver starts us again when it's worth it
+        if (isOnline()) {
+            // We may have been started just for this
+            NetworkUtils.restoreLoginCookies(this);
+
+            sendAll();
+            scheduleRetry();
+        }
+
+        ConnectivityReceiver.update(this);
+    }
+
+    private boolean isOnline() {
+        ConnectivityManager connectivity = 
+            (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+
+        return network != null && network.isConnected();
+    }
+
+    private void sendAll() {
+        Cursor pending = getContentResolver().query(QueuedReply.CONTENT_URI, null, 
+                QueuedReply.STATE + "!=" + QueuedReply.STATE_FAILED, null, QueuedReply.ID);
+
+        ArrayList<QueuedReply> replies;
+        try {
+            replies = QueuedReply.fromCursor(pending);
+        } finally {
+            pending.close();
+        }
+
+        long now = System.currentTimeMillis();
+        HashSet<String> heldBack = new HashSet<String>();
+
+        for (QueuedReply reply : replies) {
+            if (heldBack.contains(reply.getThreadId()) || reply.getNextAttempt() > now) {
+                heldBack.add(reply.getThreadId());
+                continue;
+            }
+
+            if (!send(reply)) {
+                heldBack.add(reply.getThreadId());
+            }
+        }
+    }
+
+    /**
+     * @return Whether the reply has been sent
+     */
+    private boolean send(QueuedReply aReply) {
+        Uri uri = ContentUris.withAppendedId(QueuedReply.CONTENT_URI, aReply.getId());
+        AwfulThread thread = new AwfulThread(aReply.getThreadId());
+        boolean requested = false;
+
+        try {
+            if (aReply.isEdit()) {
+                // Sending an edit twice does no harm
+            } else if (aReply.getLastPostId() == 0) {
+                thread.getLastPosts();
+                recordLastPost(uri, thread);
+            } else if (aReply.getState() == QueuedReply.STATE_UNCERTAIN) {
+                if (isPosted(aReply, thread)) {
+                    Log.i(TAG, "Reply " + aReply.getId() + " got through last time");
+                    sent(aReply, uri, thread);
+                    return true;
+                }
+            }
+
+            FormTokenCache.Tokens tokens = FormTokenCache.take(aReply.getThreadId());
+            if (tokens == null) {
+                retryLater(aReply, uri, aReply.getState(), true);
+                return false;
+            }
+
+            List<URI> redirects = new LinkedList<URI>();
+            TagNode response;
+
+            requested = true;
+            if (aReply.isEdit()) {
+                response = Reply.edit(aReply.getMessage(), tokens.getFormKey(), tokens.getFormCookie(), 
+                        aReply.getThreadId(), aReply.getPostId(), redirects);
+            } else {
+                response = Reply.post(aReply.getMessage(), tokens.getFormKey(), tokens.getFormCookie(), 
+                        aReply.getThreadId(), redirects);
+            }
+
+            // The site sends us on to the thread when it takes a post, and
+            // leaves us on an error page, flood control or the like, when not
+            if (response != null) {
+                thread.parseThreadPage(response, redirects);
+            }
+
+            if (thread.getPosts() != null && thread.getPosts().size() > 0) {
+                sent(aReply, uri, thread);
+                return true;
+            }
+
+            Log.i(TAG, "Site turned down reply " + aReply.getId());
+            retryLater(aReply, uri, QueuedReply.STATE_PENDING, true);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.i(TAG, e.toString());
+
+            if (isNeverSent(e)) {
+                // Lost the connection; that's not the reply's fault
+                retryLater(aReply, uri, aReply.getState(), false);
+            } else if (!requested) {
+                // Went wrong before the reply went out, so nothing's changed
+                retryLater(aReply, uri, aReply.getState(), true);
+            } else {
+                // The request may have reached the site, which has to be
+                // checked before sending it again
+                retryLater(aReply, uri, QueuedReply.STATE_UNCERTAIN, true);
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isNeverSent(Exception aException) {
+        return aException instanceof UnknownHostException ||
+            aException instanceof ConnectException ||
+            aException instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * Notes the last post on the thread's last page, which the reply will
+     * come after.
+     */
+    private void recordLastPost(Uri aUri, AwfulThread aThread) {
+        ArrayList<AwfulPost> posts = aThread.getPosts();
+
+        if (posts == null || posts.size() == 0) {
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(QueuedReply.LAST_POST_ID, 
+                Long.parseLong(posts.get(posts.size() - 1).getId()));
+
+        getContentResolver().update(aUri, values, null, null);
+    }
+
+    /**
+     * Looks for a post of the user's newer than the last one the thread had
+     * before the reply was sent. The content can't be compared, since the
+     * site rewrites smilies, images and links, and other replies may have
+     * pushed it off the last page, so this works back page by page.
+     *
+     * @return Whether the reply is there, in which case the thread is left
+     *         on the page it's on
+     */
+    private boolean isPosted(QueuedReply aReply, AwfulThread aThread) throws Exception {
+        String userId = NetworkUtils.getUserId(this);
+
+        if (userId == null) {
+            return false;
+        }
+
+        aThread.getLastPosts();
+
+        for (int searched = 1; ; searched++) {
+            ArrayList<AwfulPost> posts = aThread.getPosts();
+
+            if (posts == null || posts.size() == 0) {
+                return false;
+            }
+
+            for (AwfulPost post : posts) {
+                if (userId.equals(post.getUserId()) && 
+                        Long.parseLong(post.getId()) > aReply.getLastPostId()) {
+                    return true;
+                }
+            }
+
+            // Anything further back is older than the reply
+            if (aThread.getCurrentPage() <= 1 || 
+                    Long.parseLong(posts.get(0).getId()) <= aReply.getLastPostId()) {
+                return false;
+            }
+
+            if (searched >= MAX_PAGES_SEARCHED) {
+                throw new IOException("Reply " + aReply.getId() + " not found in " + 
+                        searched + " pages");
+            }
+
+            aThread.getThreadPosts(aThread.getCurrentPage() - 1);
+        }
+    }
+
+    private void sent(QueuedReply aReply, Uri aUri, AwfulThread aThread) {
+        WriteBehindQueue writer = WriteBehindQueue.getInstance(this);
+
+        if (aThread.getCurrentPage() > 0) {
+            writer.enqueueThreadPage(aThread);
+
+            setPostedPage(aThread);
+        }
+
+        writer.discardDraft(aReply.getThreadId(), aReply.getPostId(), aReply.getMessage());
+
+        // Anyone watching the outbox hears about this, so the page has to be
+        // in place first
+        getContentResolver().delete(aUri, null, null);
+    }
+
+    /**
+     * @param aCountAttempt Whether this attempt counts towards giving up
+     */
+    private void retryLater(QueuedReply aReply, Uri aUri, int aState, boolean aCountAttempt) {
+        int attempts = aReply.getAttempts() + (aCountAttempt ? 1 : 0);
+
+        ContentValues values = new ContentValues();
+        values.put(QueuedReply.ATTEMPTS, attempts);
+
+        if (attempts >= MAX_ATTEMPTS) {
+            Log.i(TAG, "Giving up on reply " + aReply.getId());
+            values.put(QueuedReply.STATE, QueuedReply.STATE_FAILED);
+
+            mHandler.post(new Runnable() {
+                public void run() {
+                    Toast.makeText(getApplicationContext(), R.string.reply_failed, Toast.LENGTH_LONG).show();
+                }
+            });
+        } else {
+            values.put(QueuedReply.STATE, aState);
+            values.put(QueuedReply.NEXT_ATTEMPT, 
+                    System.currentTimeMillis() + (RETRY_DELAY << Math.max(0, attempts - 1)));
+        }
+
+        getContentResolver().update(aUri, values, null, null);
+    }
+
+    /**
+     * Sets an alarm for the next reply that's due, or clears it if there
+     * are none.
+     */
+    private void scheduleRetry() {
+        AlarmManager alarms = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        PendingIntent retry = PendingIntent.getService(this, 0, 
+                new Intent(this, OutboxService.class), 0);
+
+        Cursor next = getContentResolver().query(QueuedReply.CONTENT_URI, 
+                new String[] { QueuedReply.NEXT_ATTEMPT }, 
+                QueuedReply.STATE + "!=" + QueuedReply.STATE_FAILED, null, QueuedReply.NEXT_ATTEMPT);
+
+        try {
+            if (next.moveToFirst()) {
+                long when = Math.max(next.getLong(0), System.currentTimeMillis() + RETRY_DELAY);
+                alarms.set(AlarmManager.RTC, when, retry);
+            } else {
+                alarms.cancel(retry);
+            }
+        } finally {
+            next.close();
+        }
+    }
+}
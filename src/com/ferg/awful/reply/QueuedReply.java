@@ -0,0 +1,164 @@
+/********************************************************************************
+ * Copyright (c) 2011, Scott Ferguson
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the software nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY SCOTT FERGUSON ''AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL SCOTT FERGUSON BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+
+
+package com.ferg.awful.reply;
+
+import java.util.ArrayList;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import com.ferg.awful.constants.Constants;
+
+/**
+ * A reply or edit waiting in the outbox to be sent by the
+ * {@link OutboxService}. Rows are deleted once the site has them.
+ */
+public class QueuedReply {
+    public static final String ID           = BaseColumns._ID;
+    public static final String THREAD_ID    = "thread_id";
+    // Only set for edits
+    public static final String POST_ID      = "post_id";
+    public static final String MESSAGE      = "message";
+    public static final String STATE        = "state";
+    public static final String ATTEMPTS     = "attempts";
+    public static final String NEXT_ATTEMPT = "next_attempt";
+    // The thread's last post before the reply was first sent, so a reply
+    // that may have got through can be looked for among the newer posts
+    public static final String LAST_POST_ID = "last_post_id";
+
+    public static final int STATE_PENDING   = 0;
+    // The last attempt failed after the request went out, so the site may
+    // have the post already
+    public static final int STATE_UNCERTAIN = 1;
+    // Given up on; kept so the text can be offered back
+    public static final int STATE_FAILED    = 2;
+
+    public static final String PATH = "/outbox";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + Constants.AUTHORITY + PATH);
+
+    private long mId;
+    private String mThreadId;
+    private String mPostId;
+    private String mMessage;
+    private int mState;
+    private int mAttempts;
+    private long mNextAttempt;
+    private long mLastPostId;
+
+    /**
+     * Puts a reply, or an edit if a post id is given, in the outbox.
+     */
+    public static Uri enqueue(Context aContext, String aThreadId, String aPostId, String aMessage) {
+        ContentValues values = new ContentValues();
+        values.put(THREAD_ID, aThreadId);
+        values.put(POST_ID, aPostId);
+        values.put(MESSAGE, aMessage);
+        values.put(STATE, STATE_PENDING);
+        values.put(ATTEMPTS, 0);
+        values.put(NEXT_ATTEMPT, 0);
+
+        return aContext.getContentResolver().insert(CONTENT_URI, values);
+    }
+
+    public static ArrayList<QueuedReply> fromCursor(Cursor aCursor) {
+        ArrayList<QueuedReply> result = new ArrayList<QueuedReply>();
+
+        if (aCursor.moveToFirst()) {
+            int idIndex       = aCursor.getColumnIndex(ID);
+            int threadIdIndex = aCursor.getColumnIndex(THREAD_ID);
+            int postIdIndex   = aCursor.getColumnIndex(POST_ID);
+            int messageIndex  = aCursor.getColumnIndex(MESSAGE);
+            int stateIndex    = aCursor.getColumnIndex(STATE);
+            int attemptsIndex = aCursor.getColumnIndex(ATTEMPTS);
+            int nextIndex     = aCursor.getColumnIndex(NEXT_ATTEMPT);
+            int lastPostIndex = aCursor.getColumnIndex(LAST_POST_ID);
+
+            QueuedReply current;
+
+            do {
+                current = new QueuedReply();
+                current.mId          = aCursor.getLong(idIndex);
+                current.mThreadId    = aCursor.getString(threadIdIndex);
+                current.mPostId      = aCursor.getString(postIdIndex);
+                current.mMessage     = aCursor.getString(messageIndex);
+                current.mState       = aCursor.getInt(stateIndex);
+                current.mAttempts    = aCursor.getInt(attemptsIndex);
+                current.mNextAttempt = aCursor.getLong(nextIndex);
+                current.mLastPostId  = aCursor.getLong(lastPostIndex);
+
+                result.add(current);
+            } while (aCursor.moveToNext());
+        }
+
+        return result;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getThreadId() {
+        return mThreadId;
+    }
+
+    public String getPostId() {
+        return mPostId;
+    }
+
+    public boolean isEdit() {
+        return mPostId != null;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    public long getNextAttempt() {
+        return mNextAttempt;
+    }
+
+    /**
+     * @return The thread's last post before the reply was first sent, or 0
+     *         if it hasn't been yet
+     */
+    public long getLastPostId() {
+        return mLastPostId;
+    }
+}
@@ -29,13 +29,17 @@ package com.ferg.awful.reply;
 
 import android.util.Log;
 
+import java.net.URI;
 import java.util.HashMap;
+import java.util.List;
 
 import org.htmlcleaner.TagNode;
 import org.htmlcleaner.XPatherException;
 
 import com.ferg.awful.constants.Constants;
+import com.ferg.awful.htmlwidget.BBCode;
 import com.ferg.awful.network.NetworkUtils;
+import com.ferg.awful.thread.AwfulPost;
 
 public class Reply {
     private static final String TAG = "Reply";
@@ -57,8 +61,14 @@ public class Reply {
     private static final String VALUE_POSTID      = "";
     private static final String VALUE_FORM_COOKIE = "formcookie";
 
-    public static final TagNode edit(String aMessage, String aFormKey, String aFormCookie, String aThreadId, String aPostId) 
-        throws Exception 
+    /**
+     * Edits a post.
+     *
+     * @param aRedirects Filled with the URLs followed after the edit
+     * @return The thread page the site sends us back to
+     */
+    public static final TagNode edit(String aMessage, String aFormKey, String aFormCookie, String aThreadId, String aPostId,
+            List<URI> aRedirects) throws Exception 
     {
         HashMap<String, String> params = new HashMap<String, String>();
         params.put(PARAM_ACTION, VALUE_EDIT);
@@ -69,11 +79,17 @@ public class Reply {
         params.put(PARAM_MESSAGE, aMessage);
         params.put(PARAM_BOOKMARK, "yes");
 
-        return NetworkUtils.post(Constants.FUNCTION_EDIT_POST, params);
+        return NetworkUtils.postAndFollow(Constants.FUNCTION_EDIT_POST, params, aRedirects);
     }
 
-    public static final TagNode post(String aMessage, String aFormKey, String aFormCookie, String aThreadId) 
-        throws Exception 
+    /**
+     * Replies to a thread.
+     *
+     * @param aRedirects Filled with the URLs followed after the reply
+     * @return The thread page the site sends us on to
+     */
+    public static final TagNode post(String aMessage, String aFormKey, String aFormCookie, String aThreadId,
+            List<URI> aRedirects) throws Exception 
     {
         HashMap<String, String> params = new HashMap<String, String>();
         params.put(PARAM_ACTION, VALUE_ACTION);
@@ -83,41 +99,30 @@ public class Reply {
         params.put(PARAM_FORM_COOKIE, aFormCookie);
         params.put(PARAM_MESSAGE, aMessage);
 
-        return NetworkUtils.post(Constants.FUNCTION_POST_REPLY, params);
+        return NetworkUtils.postAndFollow(Constants.FUNCTION_POST_REPLY, params, aRedirects);
     }
 
-    public static final String getFormKey(String aThreadId) throws Exception {
-        String result = null;
-
-        HashMap<String, String> params = new HashMap<String, String>();
-        params.put(PARAM_ACTION, "newreply");
-        params.put(PARAM_THREADID, aThreadId);
-
-        TagNode response = NetworkUtils.get(Constants.FUNCTION_POST_REPLY, params);
-
-        Object[] formkey = response.evaluateXPath(FORMKEY);
-        if (formkey.length > 0) {
-            result = ((TagNode) formkey[0]).getAttributeByName("value");
-        }
-
-        return result;
-    }
-
-    public static final String getFormCookie(String aThreadId) throws Exception {
-        String result = null;
-
+    /**
+     * Reads the formkey and form_cookie off the reply form, which has both.
+     *
+     * @return The tokens, or null if the form didn't have them
+     */
+    public static final FormTokenCache.Tokens getFormTokens(String aThreadId) throws Exception {
         HashMap<String, String> params = new HashMap<String, String>();
         params.put(PARAM_ACTION, "newreply");
         params.put(PARAM_THREADID, aThreadId);
 
         TagNode response = NetworkUtils.get(Constants.FUNCTION_POST_REPLY, params);
 
+        Object[] formKey    = response.evaluateXPath(FORMKEY);
         Object[] formCookie = response.evaluateXPath(FORMCOOKIE);
-        if (formCookie.length > 0) {
-            result = ((TagNode) formCookie[0]).getAttributeByName("value");
+        if (formKey.length == 0 || formCookie.length == 0) {
+            return null;
         }
 
-        return result;
+        return new FormTokenCache.Tokens(
+                ((TagNode) formKey[0]).getAttributeByName("value"),
+                ((TagNode) formCookie[0]).getAttributeByName("value"));
     }
 
     public static final String getPost(String aPostId) throws Exception {
@@ -137,6 +142,22 @@ public class Reply {
         return result;
     }
 
+    /**
+     * Builds a quote from the copy of the post we already have. It's close
+     * enough to what {@link #getQuote} returns to start writing with.
+     *
+     * @return The quote, or null if the post couldn't be converted
+     */
+    public static final String getLocalQuote(AwfulPost aPost) {
+        String body = BBCode.fromHtml(aPost.getContent());
+        if (body == null) {
+            return null;
+        }
+
+        return "[quote=\"" + aPost.getUsername() + "\" post=\"" + aPost.getId() + "\"]\n" +
+            body + "\n[/quote]\n";
+    }
+
     public static final String getQuote(String aPostId) throws Exception {
         String result = null;
 
@@ -89,14 +89,24 @@ public class AwfulForum extends AwfulSubforum implements Parcelable {
 	}
 
 	public static ArrayList<AwfulForum> getForums(Context aContext) throws Exception {
-        ArrayList<AwfulForum> result = new ArrayList<AwfulForum>();
-
-        Cursor query = aContext.getContentResolver().query(CONTENT_URI, null, null, null, null);
+        ArrayList<AwfulForum> result = getCachedForums(aContext);
 
         // If we have nothing in the cache, resort to the remote
-        if (query.getCount() == 0) {
+        if (result.size() == 0) {
             return getForumsFromRemote(aContext);
         }
+
+        return result;
+    }
+
+    /**
+     * Returns the forum list as it was last cached, or an empty list if it
+     * hasn't been cached yet.
+     */
+	public static ArrayList<AwfulForum> getCachedForums(Context aContext) {
+        ArrayList<AwfulForum> result = new ArrayList<AwfulForum>();
+
+        Cursor query = aContext.getContentResolver().query(CONTENT_URI, null, null, null, null);
         
         if (query.moveToFirst()) {
             int idIndex      = query.getColumnIndex(ID);
@@ -123,13 +133,24 @@ public class AwfulForum extends AwfulSubforum implements Parcelable {
         return result;
     }
 
-	private static ArrayList<AwfulForum> getForumsFromRemote(Context aContext) throws Exception {
+    /**
+     * Fetches the forum list from the site and replaces the cached copy
+     * with it.
+     */
+	public static ArrayList<AwfulForum> getForumsFromRemote(Context aContext) throws Exception {
 		ArrayList<AwfulForum> result = new ArrayList<AwfulForum>();
 
         TagNode response = NetworkUtils.get(Constants.BASE_URL);
 
 		Object[] forumObjects = response.evaluateXPath(FORUM_ROW);
 
+        // We only get here with a good response, so it's safe to throw out
+        // the old copy
+        if (forumObjects.length > 0) {
+            aContext.getContentResolver().delete(AwfulSubforum.CONTENT_URI, null, null);
+            aContext.getContentResolver().delete(CONTENT_URI, null, null);
+        }
+
 		for (Object current : forumObjects) {
 			AwfulForum forum = new AwfulForum();
 			TagNode node = (TagNode) current;
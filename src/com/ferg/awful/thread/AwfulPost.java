@@ -27,27 +27,51 @@
 
 package com.ferg.awful.thread;
 
-import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.htmlcleaner.CleanerProperties;
+import org.htmlcleaner.ContentNode;
 import org.htmlcleaner.HtmlCleaner;
 import org.htmlcleaner.SimpleHtmlSerializer;
 import org.htmlcleaner.TagNode;
 import org.htmlcleaner.XPatherException;
+
+import android.database.Cursor;
+import android.net.Uri;
 import android.util.Log;
 
 import com.ferg.awful.constants.Constants;
-import com.ferg.awful.network.NetworkUtils;
+import com.ferg.awful.provider.PostContentCodec;
 
 public class AwfulPost {
     private static final String TAG = "AwfulPost";
 
+    public static final String ID              = "post_id";
+    public static final String THREAD_ID       = "thread_id";
+    public static final String PAGE            = "page";
+    public static final String POST_INDEX      = "post_index";
+    public static final String DATE            = "date";
+    public static final String USER_ID         = "user_id";
+    public static final String USERNAME        = "username";
+    public static final String AVATAR          = "avatar";
+    public static final String CONTENT         = "content";
+    public static final String EDITED          = "edited";
+    public static final String LAST_READ_URL   = "last_read_url";
+    public static final String PREVIOUSLY_READ = "previously_read";
+    public static final String LAST_READ       = "last_read";
+    public static final String EVEN            = "even";
+    public static final String EDITABLE        = "editable";
+    public static final String LINKS           = "links";
+    public static final String CONTENT_HASH    = "content_hash";
+
+    public static final String PATH = "/post";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + Constants.AUTHORITY + PATH);
+
     /*private static final String USERNAME_SEARCH = "//dt[@class='author']|//dt[@class='author op']|//dt[@class='author role-mod']|//dt[@class='author role-admin']|//dt[@class='author role-mod op']|//dt[@class='author role-admin op']";
     private static final String MOD_SEARCH      = "//dt[@class='author role-mod']|//dt[@class='author role-mod op']";
     private static final String ADMIN_SEARCH    = "//dt[@class='author role-admin']|//dt[@class='author role-admin op']";
@@ -85,12 +109,22 @@ public class AwfulPost {
     private static final String LINK_POST_HISTORY = "Post History";
     private static final String LINK_RAP_SHEET    = "Rap Sheet";
 
+    // Bits of the LINKS column, so the four profile link flags fit in one row value
+    private static final int FLAG_PROFILE      = 1;
+    private static final int FLAG_MESSAGE      = 2;
+    private static final int FLAG_POST_HISTORY = 4;
+    private static final int FLAG_RAP_SHEET    = 8;
+
     private String mId;
     private String mDate;
     private String mUserId;
     private String mUsername;
     private String mAvatar;
     private String mContent;
+    // Content as read from the cache, unpacked the first time it's asked for
+    private byte[] mPackedContent;
+    // Hash of the post body's markup when it was parsed, 0 if unknown
+    private int mContentHash;
     private String mEdited;
 	private boolean mLastRead = false;
 	private boolean mPreviouslyRead = false;
@@ -143,11 +177,34 @@ public class AwfulPost {
     }
 
     public String getContent() {
+        if (mPackedContent != null) {
+            mContent       = PostContentCodec.decode(mPackedContent);
+            mPackedContent = null;
+        }
+
         return mContent;
     }
 
     public void setContent(String aContent) {
-        mContent = aContent;
+        mContent       = aContent;
+        mPackedContent = null;
+    }
+
+    /**
+     * Sets the content as packed by {@link PostContentCodec}. It's unpacked
+     * the first time {@link #getContent} is called.
+     */
+    public void setPackedContent(byte[] aPackedContent) {
+        mContent       = null;
+        mPackedContent = aPackedContent;
+    }
+
+    public int getContentHash() {
+        return mContentHash;
+    }
+
+    public void setContentHash(int aContentHash) {
+        mContentHash = aContentHash;
     }
 
     public String getEdited() {
@@ -230,34 +287,38 @@ public class AwfulPost {
 		return mHasRapSheetLink;
 	}
 
-    public ArrayList<AwfulPost> markLastRead() {
+    public int getLinkFlags() {
+        return (mHasProfileLink     ? FLAG_PROFILE      : 0) |
+               (mHasMessageLink     ? FLAG_MESSAGE      : 0) |
+               (mHasPostHistoryLink ? FLAG_POST_HISTORY : 0) |
+               (mHasRapSheetLink    ? FLAG_RAP_SHEET    : 0);
+    }
+
+    public void setLinkFlags(int aFlags) {
+        mHasProfileLink     = (aFlags & FLAG_PROFILE) != 0;
+        mHasMessageLink     = (aFlags & FLAG_MESSAGE) != 0;
+        mHasPostHistoryLink = (aFlags & FLAG_POST_HISTORY) != 0;
+        mHasRapSheetLink    = (aFlags & FLAG_RAP_SHEET) != 0;
+    }
+
+    /**
+     * Parses the posts on a thread page.
+     *
+     * @param aKnown Posts already parsed from an earlier copy of the page, or
+     *               null. Any whose text hasn't changed since keep their
+     *               content rather than having it serialized again.
+     */
+    public static ArrayList<AwfulPost> parsePosts(TagNode aThread, int pti, List<AwfulPost> aKnown) {
         ArrayList<AwfulPost> result = new ArrayList<AwfulPost>();
 
-        try {
-            List<URI> redirects = new LinkedList<URI>();
-            TagNode response = NetworkUtils.get(Constants.BASE_URL
-                    + mLastReadUrl, redirects);
-
-            int pti = -1;
-            if (redirects.size() > 1) {
-                String fragment = redirects.get(redirects.size() - 1)
-                        .getFragment();
-                if (fragment.startsWith(Constants.FRAGMENT_PTI)) {
-                    pti = Integer.parseInt(
-                            fragment.substring(Constants.FRAGMENT_PTI.length()));
-                }
+        HashMap<String, AwfulPost> known = new HashMap<String, AwfulPost>();
+        if (aKnown != null) {
+            for (AwfulPost post : aKnown) {
+                known.put(post.getId(), post);
             }
-
-            result = parsePosts(response, pti);
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        int reused = 0;
 
-        return result;
-    }
-
-    public static ArrayList<AwfulPost> parsePosts(TagNode aThread, int pti) {
-        ArrayList<AwfulPost> result = new ArrayList<AwfulPost>();
         HtmlCleaner cleaner = new HtmlCleaner();
         CleanerProperties properties = cleaner.getProperties();
         properties.setOmitComments(true);
@@ -289,7 +350,18 @@ public class AwfulPost {
 						}
 					}
 					if(pc.getAttributeByName("class").equalsIgnoreCase("postbody")){
-	                    post.setContent(fixNewline.matcher(serializer.getAsString(pc)).replaceAll(""));
+						// Serializing the body is most of the work for a post, so
+						// skip it when the markup matches what we already have
+						int hash = hashMarkup(pc);
+						AwfulPost previous = known.get(post.getId());
+
+						if (previous != null && hash != 0 && previous.getContentHash() == hash) {
+							post.setContent(previous.getContent());
+							reused++;
+						} else {
+							post.setContent(fixNewline.matcher(serializer.getAsString(pc)).replaceAll(""));
+						}
+						post.setContentHash(hash);
 					}
 					if(pc.getAttributeByName("class").equalsIgnoreCase("postdate")){//done
 						if(pc.getChildTags().length>0){
@@ -352,7 +424,7 @@ public class AwfulPost {
                 lastReadFound = true;
             }
             
-            Log.i(TAG, Integer.toString(postNodes.length));
+            Log.i(TAG, postNodes.length + " posts, " + reused + " unchanged");
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -360,6 +432,77 @@ public class AwfulPost {
         return result;
     }
 
+    /**
+     * Builds posts from a cursor over the post table, in cursor order.
+     */
+    public static ArrayList<AwfulPost> fromCursor(Cursor aCursor) {
+        ArrayList<AwfulPost> result = new ArrayList<AwfulPost>();
+
+        if (aCursor.moveToFirst()) {
+            int idIndex             = aCursor.getColumnIndex(ID);
+            int dateIndex           = aCursor.getColumnIndex(DATE);
+            int userIdIndex         = aCursor.getColumnIndex(USER_ID);
+            int usernameIndex       = aCursor.getColumnIndex(USERNAME);
+            int avatarIndex         = aCursor.getColumnIndex(AVATAR);
+            int contentIndex        = aCursor.getColumnIndex(CONTENT);
+            int editedIndex         = aCursor.getColumnIndex(EDITED);
+            int lastReadUrlIndex    = aCursor.getColumnIndex(LAST_READ_URL);
+            int previouslyReadIndex = aCursor.getColumnIndex(PREVIOUSLY_READ);
+            int lastReadIndex       = aCursor.getColumnIndex(LAST_READ);
+            int evenIndex           = aCursor.getColumnIndex(EVEN);
+            int editableIndex       = aCursor.getColumnIndex(EDITABLE);
+            int linksIndex          = aCursor.getColumnIndex(LINKS);
+            int contentHashIndex    = aCursor.getColumnIndex(CONTENT_HASH);
+
+            AwfulPost current;
+
+            do {
+                current = new AwfulPost();
+                current.setId(Long.toString(aCursor.getLong(idIndex)));
+                current.setDate(aCursor.getString(dateIndex));
+                current.setUserId(aCursor.getString(userIdIndex));
+                current.setUsername(aCursor.getString(usernameIndex));
+                current.setAvatar(aCursor.getString(avatarIndex));
+                current.setPackedContent(aCursor.getBlob(contentIndex));
+                current.setEdited(aCursor.getString(editedIndex));
+                current.setLastReadUrl(aCursor.getString(lastReadUrlIndex));
+                current.setPreviouslyRead(aCursor.getInt(previouslyReadIndex) == 1);
+                current.setLastRead(aCursor.getInt(lastReadIndex) == 1);
+                current.setEven(aCursor.getInt(evenIndex) == 1);
+                current.setEditable(aCursor.getInt(editableIndex) == 1);
+                current.setLinkFlags(aCursor.getInt(linksIndex));
+                current.setContentHash(aCursor.getInt(contentHashIndex));
+
+                result.add(current);
+            } while (aCursor.moveToNext());
+        }
+
+        return result;
+    }
+
+    /**
+     * Hashes a node's tags, attributes and text, which is all serializing it
+     * would write out, without building the string.
+     */
+    private static int hashMarkup(TagNode aNode) {
+        int hash = aNode.getName().hashCode();
+
+        for (Map.Entry<String, String> attribute : aNode.getAttributes().entrySet()) {
+            hash = 31 * hash + attribute.getKey().hashCode();
+            hash = 31 * hash + attribute.getValue().hashCode();
+        }
+
+        for (Object child : aNode.getChildren()) {
+            if (child instanceof TagNode) {
+                hash = 31 * hash + hashMarkup((TagNode) child);
+            } else if (child instanceof ContentNode) {
+                hash = 31 * hash + child.toString().hashCode();
+            }
+        }
+
+        return hash;
+    }
+
     private static String createPostHtml(String aHtml) {
         aHtml = aHtml.replaceAll(ELEMENT_POSTBODY, REPLACEMENT_POSTBODY);
         aHtml = aHtml.replaceAll(ELEMENT_END_TD, REPLACEMENT_END_TD);
@@ -35,16 +35,50 @@ import java.util.List;
 
 import org.htmlcleaner.TagNode;
 
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
 import com.ferg.awful.constants.Constants;
 import com.ferg.awful.network.NetworkUtils;
+import com.ferg.awful.provider.PageSnapshotStore;
 
 public class AwfulThread extends AwfulPagedItem implements Parcelable {
     private static final String TAG = "AwfulThread";
 
+    public static final String ID           = "thread_id";
+    public static final String FORUM_ID     = "forum_id";
+    public static final String TITLE        = "title";
+    public static final String AUTHOR       = "author";
+    public static final String STICKY       = "sticky";
+    public static final String ICON         = "icon";
+    public static final String UNREAD_COUNT = "unread_count";
+    public static final String CURRENT_PAGE = "current_page";
+    public static final String LAST_PAGE    = "last_page";
+    public static final String BOOKMARKED   = "bookmarked";
+
+    // Where the thread sits in its forum's list and in the user CP. Forum
+    // positions are offset by LIST_PAGE_STRIDE per page of the listing.
+    public static final String LIST_POSITION     = "list_position";
+    public static final String BOOKMARK_POSITION = "bookmark_position";
+
+    public static final int LIST_PAGE_STRIDE = 1000;
+
+    // Where the reader got to, as far as the pages we've fetched show: the
+    // furthest page read, its last post and how many posts it had, and how
+    // many posts fill a page
+    public static final String READ_PAGE       = "read_page";
+    public static final String READ_POST_ID    = "read_post_id";
+    public static final String READ_PAGE_POSTS = "read_page_posts";
+    public static final String POSTS_PER_PAGE  = "posts_per_page";
+
+    public static final String PATH = "/thread";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + Constants.AUTHORITY + PATH);
+
     //private static final String THREAD_ROW      = "//table[@id='forum']//tr";
     //private static final String THREAD_SEEN_ROW = "//tr[@class='thread']";
     //private static final String THREAD_TITLE    = "//a[@class='thread_title']";
@@ -185,13 +219,187 @@ public class AwfulThread extends AwfulPagedItem implements Parcelable {
         return result;
     }
 
+    /**
+     * Builds a thread from the row the cursor is sitting on. Posts aren't
+     * loaded.
+     */
+    public static AwfulThread fromCursorRow(Cursor aCursor) {
+        AwfulThread result = new AwfulThread(Long.toString(aCursor.getLong(aCursor.getColumnIndex(ID))));
+
+        result.setTitle(aCursor.getString(aCursor.getColumnIndex(TITLE)));
+        result.setAuthor(aCursor.getString(aCursor.getColumnIndex(AUTHOR)));
+        result.setSticky(aCursor.getInt(aCursor.getColumnIndex(STICKY)) == 1);
+        result.setIcon(aCursor.getString(aCursor.getColumnIndex(ICON)));
+        result.setUnreadCount(aCursor.getInt(aCursor.getColumnIndex(UNREAD_COUNT)));
+
+        return result;
+    }
+
+    /**
+     * Fills in the posts of a page from the local cache.
+     *
+     * @param aPage The page to load, or -1 for the page that was cached most
+     *        recently
+     * @return Whether the page was cached
+     */
+    public boolean getCachedThreadPosts(Context aContext, int aPage) {
+        // Recently read pages come straight out of the snapshot file
+        if (PageSnapshotStore.getInstance(aContext).read(this, aPage)) {
+            mPTI = -1;
+            return true;
+        }
+
+        Cursor thread = aContext.getContentResolver().query(
+                ContentUris.withAppendedId(CONTENT_URI, Long.parseLong(mThreadId)), 
+                null, null, null, null);
+
+        int lastPage;
+        try {
+            if (!thread.moveToFirst()) {
+                return false;
+            }
+
+            if (aPage == -1) {
+                aPage = thread.getInt(thread.getColumnIndex(CURRENT_PAGE));
+            }
+            lastPage = thread.getInt(thread.getColumnIndex(LAST_PAGE));
+
+            if (mTitle == null) {
+                mTitle = thread.getString(thread.getColumnIndex(TITLE));
+            }
+        } finally {
+            thread.close();
+        }
+
+        Cursor posts = aContext.getContentResolver().query(AwfulPost.CONTENT_URI, null, 
+                AwfulPost.THREAD_ID + "=? AND " + AwfulPost.PAGE + "=?", 
+                new String[] { mThreadId, Integer.toString(aPage) }, AwfulPost.POST_INDEX);
+
+        ArrayList<AwfulPost> cached = AwfulPost.fromCursor(posts);
+        posts.close();
+
+        if (cached.size() == 0) {
+            return false;
+        }
+
+        mPTI = -1;
+        setPosts(cached);
+        setCurrentPage(aPage);
+        setLastPage(Math.max(aPage, lastPage));
+
+        return true;
+    }
+
     public void getThreadPosts() throws Exception {
         getThreadPosts(-1);
     }
 
+    /**
+     * Works out which page the first unread post is on from the read state
+     * kept with the cached thread.
+     *
+     * @return The page, or -1 if there's no read state to go on
+     */
+    public int getLocalNewPostPage(Context aContext) {
+        int readPage = getLocalReadPage(aContext);
+
+        return readPage == -1 ? -1 : Math.abs(readPage);
+    }
+
+    /**
+     * Same as {@link #getLocalNewPostPage}, but negated when unread posts
+     * start on a fresh page rather than after read ones.
+     */
+    private int getLocalReadPage(Context aContext) {
+        Cursor thread = aContext.getContentResolver().query(
+                ContentUris.withAppendedId(CONTENT_URI, Long.parseLong(mThreadId)), 
+                new String[] { READ_PAGE, READ_PAGE_POSTS, POSTS_PER_PAGE }, null, null, null);
+
+        try {
+            if (!thread.moveToFirst() || thread.isNull(0)) {
+                return -1;
+            }
+
+            int readPage  = thread.getInt(0);
+            int readPosts = thread.getInt(1);
+            int perPage   = thread.getInt(2);
+
+            // Once the page that was read is full, anything new starts on the
+            // next one
+            if (mUnreadCount != 0 && perPage > 0 && readPosts >= perPage) {
+                return -(readPage + 1);
+            }
+
+            return readPage;
+        } finally {
+            thread.close();
+        }
+    }
+
+    /**
+     * Loads the page holding the first unread post. When the local read
+     * state knows which page that is we ask for it by number, which saves
+     * the site's goto=newpost redirects; the read marks on the page we get
+     * back decide whether the guess was right.
+     */
+    public void getNewPosts(Context aContext) throws Exception {
+        int readPage = getLocalReadPage(aContext);
+
+        if (readPage != -1) {
+            int page = Math.abs(readPage);
+            getThreadPosts(page);
+
+            if (checkNewPostPage(page, readPage > 0)) {
+                return;
+            }
+
+            Log.i(TAG, "Read state for thread " + mThreadId + " was out of date");
+        }
+
+        getThreadPosts(-1);
+    }
+
+    /**
+     * Checks that a page fetched by number really is where goto=newpost
+     * would have gone, and marks the post to scroll to.
+     *
+     * @param aStartsRead Whether the page should open with posts already read
+     */
+    private boolean checkNewPostPage(int aPage, boolean aStartsRead) {
+        if (mPosts == null || mPosts.size() == 0) {
+            return false;
+        }
+
+        // The site moved us somewhere else, most likely past the end
+        if (getCurrentPage() != aPage) {
+            return false;
+        }
+
+        AwfulPost firstUnread = null;
+        for (AwfulPost post : mPosts) {
+            if (!post.isPreviouslyRead()) {
+                firstUnread = post;
+                break;
+            }
+        }
+
+        if (firstUnread == null) {
+            // Everything here is read, which is only right on the last page
+            if (getCurrentPage() < getLastPage()) {
+                return false;
+            }
+
+            mPosts.get(mPosts.size() - 1).setLastRead(true);
+        } else if (firstUnread == mPosts.get(0) && aStartsRead) {
+            // Read further somewhere else and then marked some of it unread
+            return false;
+        }
+
+        return true;
+    }
+
     public void getThreadPosts(int aPage) throws Exception {
         HashMap<String, String> params = new HashMap<String, String>();
-        params.put(Constants.PARAM_THREAD_ID, mThreadId);
 
         if (aPage == -1) {
             params.put(Constants.PARAM_GOTO, "newpost");
@@ -199,14 +407,40 @@ public class AwfulThread extends AwfulPagedItem implements Parcelable {
             params.put(Constants.PARAM_PAGE, Integer.toString(aPage));
         }
 
+        getThreadPosts(params);
+    }
+
+    /**
+     * Loads the thread's last page, wherever the reader is up to.
+     */
+    public void getLastPosts() throws Exception {
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put(Constants.PARAM_GOTO, "lastpost");
+
+        getThreadPosts(params);
+    }
+
+    private void getThreadPosts(HashMap<String, String> aParams) throws Exception {
+        aParams.put(Constants.PARAM_THREAD_ID, mThreadId);
+
         List<URI> redirects = new LinkedList<URI>();
         TagNode response = NetworkUtils.get(
-                Constants.FUNCTION_THREAD, params, redirects);
+                Constants.FUNCTION_THREAD, aParams, redirects);
+
+        parseThreadPage(response, redirects);
+    }
 
+    /**
+     * Reads the posts and page numbers out of a thread page.
+     *
+     * @param aRedirects The URLs followed to get to the page, the last of
+     *                   which may say which post is the first unread one
+     */
+    public void parseThreadPage(TagNode aResponse, List<URI> aRedirects) throws Exception {
         mPTI = -1;
-        if (redirects.size() > 1) {
-            String fragment = redirects.get(redirects.size() - 1).getFragment();
-            if (fragment.startsWith(Constants.FRAGMENT_PTI)) {
+        if (aRedirects.size() > 1) {
+            String fragment = aRedirects.get(aRedirects.size() - 1).getFragment();
+            if (fragment != null && fragment.startsWith(Constants.FRAGMENT_PTI)) {
                 mPTI = Integer.parseInt(
                         fragment.substring(Constants.FRAGMENT_PTI.length()));
             }
@@ -215,7 +449,7 @@ public class AwfulThread extends AwfulPagedItem implements Parcelable {
         // If we got here from ChromeToPhone the title hasn't been parsed yet,
         // so grab that now
         if (mTitle == null) {
-        	TagNode[] tarTitle = response.getElementsByAttValue("class", "bclast", true, true);
+        	TagNode[] tarTitle = aResponse.getElementsByAttValue("class", "bclast", true, true);
 
             if (tarTitle.length > 0) {
                 mTitle = tarTitle[0].getText().toString().trim();
@@ -223,8 +457,10 @@ public class AwfulThread extends AwfulPagedItem implements Parcelable {
             }
         }
 
-        setPosts(AwfulPost.parsePosts(response, mPTI));
-        parsePageNumbers(response);
+        // Whatever we had before is usually this same page, so unchanged posts
+        // can be carried over
+        setPosts(AwfulPost.parsePosts(aResponse, mPTI, mPosts));
+        parsePageNumbers(aResponse);
     }
 
     public String getThreadId() {
@@ -17,20 +17,16 @@ package com.ferg.awful.thumbnail;
 
 import android.app.ListActivity;
 import android.widget.ListAdapter;
-import com.commonsware.cwac.cache.SimpleWebImageCache;
+import com.ferg.awful.image.ImageCache;
 
 abstract public class ThumbnailActivity extends ListActivity {
 	abstract protected int[] getImageIdArray();
 	
-	private ThumbnailBus bus=new ThumbnailBus();
-	private SimpleWebImageCache<ThumbnailBus, ThumbnailMessage> cache=
-							new SimpleWebImageCache<ThumbnailBus, ThumbnailMessage>(null, null, 101, bus);
-							
 	@Override
 	public void setListAdapter(ListAdapter adapter) {
 		super.setListAdapter(new ThumbnailAdapter(this,
 																							adapter,
-																							cache,
+																							ImageCache.getInstance(this),
 																							getImageIdArray()));
 	}
 }
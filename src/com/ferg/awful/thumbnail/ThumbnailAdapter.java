@@ -14,8 +14,10 @@
 
 package com.ferg.awful.thumbnail;
 
+import java.util.WeakHashMap;
+
 import android.app.Activity;
-import android.util.Log;
+import android.graphics.Bitmap;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.Animation;
@@ -25,33 +27,40 @@ import android.widget.ImageView;
 import android.widget.ListAdapter;
 
 import com.commonsware.cwac.adapter.AdapterWrapper;
-import com.commonsware.cwac.cache.SimpleWebImageCache;
-import com.ferg.awful.R;
+import com.ferg.awful.image.ImageCache;
+import com.ferg.awful.image.ImageLoader;
 
 public class ThumbnailAdapter extends AdapterWrapper {
 	private static final String TAG="ThumbnailAdapter";
+	
 	private int[] imageIds;
-	private SimpleWebImageCache<ThumbnailBus, ThumbnailMessage> cache=null;
+	private ImageCache cache=null;
+	private ImageLoader loader=null;
 	private Activity host=null;
 	
+	// The load each image is waiting on, so it can be dropped when the row
+	// is recycled for something else
+	private WeakHashMap<ImageView, ImageLoader.Request> pending=
+		new WeakHashMap<ImageView, ImageLoader.Request>();
+	
+	// The cached bitmap each image is showing, handed back to the cache
+	// when it shows something else so the memory can be reused
+	private WeakHashMap<ImageView, Bitmap> shown=
+		new WeakHashMap<ImageView, Bitmap>();
+	
 	/**
 		* Constructor wrapping a supplied ListAdapter
     */
 	public ThumbnailAdapter(Activity host,
 													ListAdapter wrapped,
-													SimpleWebImageCache<ThumbnailBus, ThumbnailMessage> cache,
+													ImageCache cache,
 													int[] imageIds) {
 		super(wrapped);
 		
 		this.host=host;
 		this.imageIds=imageIds;
 		this.cache=cache;
-		
-		cache.getBus().register(getBusKey(), onCache);
-	}
-	
-	public void close() {
-		cache.getBus().unregister(onCache);
+		this.loader=ImageLoader.getInstance(host);
 	}
 
 	/**
@@ -93,55 +102,83 @@ public class ThumbnailAdapter extends AdapterWrapper {
 		image.setAnimation(null);
 	}
 	
+	private void show(ImageView image, Bitmap bitmap) {
+		Bitmap previous=shown.remove(image);
+		
+		if (bitmap != null) {
+			shown.put(image, bitmap);
+		}
+		image.setImageBitmap(bitmap);
+		
+		cache.release(previous);
+	}
+	
+	private void unshow(ImageView image) {
+		cache.release(shown.remove(image));
+	}
+	
 	public void processView(View row) {
 		for (int imageId : imageIds) {
 			ImageView image=(ImageView)row.findViewById(imageId);
 			
 			if (image == null) continue;
 			
+			ImageLoader.Request previous=pending.remove(image);
+			if (previous != null) {
+				if (image.getTag() != null &&
+						image.getTag().toString().equals(previous.getUrl())) {
+					// Same image as before, still on its way
+					pending.put(image, previous);
+					continue;
+				}
+				previous.cancel();
+			}
+			
 			if (image.getTag() == null) {
 				// Immediately set the imageview blank, no asynchronous action
 				image.setImageResource(0);
+				unshow(image);
+				continue;
+			}
+			
+			String url=image.getTag().toString();
+			Bitmap cached=cache.acquire(url);
+			
+			if (cached != null) {
+				// Already decoded, so no spinner
+				unsetLoadingImage(image);
+				show(image, cached);
 			} else {
 				// We need to asynchronously manage the image.
 				
 				// First we synchronously set a "loading" animation
 				setLoadingImage(image);
+				unshow(image);
 				
-				// Tell the cache to load the image and set it
-				ThumbnailMessage msg=cache.getBus().createMessage(getBusKey());
-																
-				msg.setImageView(image);
-				msg.setUrl(image.getTag().toString());
-				
-				try {
-					cache.notify(msg.getUrl(), msg);
-				}
-				catch (Throwable t) {
-					Log.e(TAG, "Exception trying to fetch image", t);
-				}
+				// Rows are only bound as they come on screen
+				pending.put(image, loader.load(url, 0, ImageLoader.PRIORITY_VISIBLE,
+																			 new OnLoaded(image)));
 			}
 		}
 	}
 	
-	private String getBusKey() {
-		return(toString());
-	}
-	
-	private ThumbnailBus.Receiver<ThumbnailMessage> onCache=
-		new ThumbnailBus.Receiver<ThumbnailMessage>() {
-		public void onReceive(final ThumbnailMessage message) {
-			final ImageView image=message.getImageView();
+	private class OnLoaded implements ImageLoader.Callback {
+		private final ImageView image;
+		
+		OnLoaded(ImageView image) {
+			this.image=image;
+		}
+		
+		public void onImageLoaded(String url, Bitmap bitmap) {
+			pending.remove(image);
 			
-			host.runOnUiThread(new Runnable() {
-				public void run() {
-					if (image.getTag()!=null &&
-							image.getTag().toString().equals(message.getUrl())) {
-						unsetLoadingImage(image); // end progress spinner
-						image.setImageDrawable(cache.get(message.getUrl()));
-					}
-				}
-			});
+			Object tag=image.getTag();
+			if (tag != null && tag.toString().equals(url)) {
+				unsetLoadingImage(image); // end progress spinner
+				show(image, bitmap);
+			} else {
+				cache.release(bitmap);
+			}
 		}
-	};
+	}
 }
\ No newline at end of file
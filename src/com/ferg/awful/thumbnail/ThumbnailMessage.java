@@ -1,47 +0,0 @@
-	/***
-	Copyright (c) 2008-2009 CommonsWare, LLC
-	
-	Licensed under the Apache License, Version 2.0 (the "License"); you may
-	not use this file except in compliance with the License. You may obtain
-	a copy of the License at
-		http://www.apache.org/licenses/LICENSE-2.0
-	Unless required by applicable law or agreed to in writing, software
-	distributed under the License is distributed on an "AS IS" BASIS,
-	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-	See the License for the specific language governing permissions and
-	limitations under the License.
-*/
-
-package com.ferg.awful.thumbnail;
-
-import android.widget.ImageView;
-
-public class ThumbnailMessage {
-	private String key;
-	private ImageView image;
-	private String url;
-	
-	public ThumbnailMessage(String key) {
-		this.key=key;
-	}
-	
-	public String getKey() {
-		return(key);
-	}
-	
-	public ImageView getImageView() {
-		return(image);
-	}
-	
-	public void setImageView(ImageView image) {
-		this.image=image;
-	}
-	
-	public String getUrl() {
-		return(url);
-	}
-	
-	public void setUrl(String url) {
-		this.url=url;
-	}
-}
\ No newline at end of file